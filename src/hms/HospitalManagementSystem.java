@@ -1,10 +1,16 @@
 package hms;
 
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hms.exception.AccessDeniedException;
 import hms.exception.CommandStackViolationException;
@@ -16,7 +22,7 @@ import hms.manager.MedicationStockManager;
 import hms.manager.PasswordManager;
 import hms.manager.RoleManager;
 import hms.manager.UserManager;
-import hms.user.User;
+import hms.utility.CSVHandler;
 import hms.utility.PromptFormatter;
 
 public class HospitalManagementSystem {
@@ -26,36 +32,46 @@ public class HospitalManagementSystem {
 	/* Manager Instances (Unused, Reserved) */
 	private static RoleManager roleManagerInstance;
 	private static PasswordManager passwordManagerInstance;
-	private static UserManager userManagerInstance;
-	private static MedicalRecordManager medicalRecordManagerInstance;
-	private static AppointmentManager appointmentManagerInstance;
-	private static MedicationStockManager medicationStockManagerInstance;
+	// initialized in the background
+	private static volatile UserManager userManagerInstance;
+	private static volatile MedicalRecordManager medicalRecordManagerInstance;
+	private static volatile AppointmentManager appointmentManagerInstance;
+	private static volatile MedicationStockManager medicationStockManagerInstance;
+	private static final Set<String> reportedLoadTimes = ConcurrentHashMap.newKeySet();
 	
-	/* Execution State Fields */
-	private static Deque<Invocable> commandStack;
-	private static Deque<String> executionDirectory;
-	private static String activeUserHospitalId;
-	private static User activeUser;
-	private static Scanner inputScanner;
+	/* Execution State Fields, held per Session */
 	
 	private HospitalManagementSystem() {
 		hmsInstance = this;
-		activeUserHospitalId = null;
 
 		try {
+			// Only the tables needed to log in are loaded before the login prompt; the others
+			// load concurrently in the background, and each manager waits for its own
+			// tables the first time it is used
 			roleManagerInstance = RoleManager.RoleManagerInit();
 			passwordManagerInstance = PasswordManager.PasswordManagerInit();
-			userManagerInstance = UserManager.UserManagerInit();
-			medicalRecordManagerInstance = MedicalRecordManager.MedicalRecordManagerInit();
-			appointmentManagerInstance = AppointmentManager.AppointmentManagerInit();
-			medicationStockManagerInstance = MedicationStockManager.MedicationStockManagerInit();
-
-			commandStack = new ArrayDeque<Invocable>();
-			executionDirectory = new ArrayDeque<String>();
-
-			inputScanner = new Scanner(System.in);
-			HospitalResourceManager.Command.CommandInit(inputScanner);
-			PromptFormatter.PromptFormatterInit(inputScanner, executionDirectory);
+			HospitalResourceManager.initInBackground(
+					UserManager.class, () -> userManagerInstance = UserManager.UserManagerInit()
+			);
+			HospitalResourceManager.initInBackground(
+					MedicalRecordManager.class, 
+					() -> medicalRecordManagerInstance = MedicalRecordManager.MedicalRecordManagerInit()
+			);
+			HospitalResourceManager.initInBackground(
+					AppointmentManager.class, 
+					() -> appointmentManagerInstance = AppointmentManager.AppointmentManagerInit()
+			);
+			HospitalResourceManager.initInBackground(
+					MedicationStockManager.class, 
+					() -> medicationStockManagerInstance = MedicationStockManager.MedicationStockManagerInit()
+			);
+
+			// prompts read from, and print the directory of, the session of the calling thread
+			HospitalResourceManager.Command.CommandInit(() -> Session.current().in);
+			PromptFormatter.PromptFormatterInit(
+					() -> Session.current().in, 
+					() -> Session.current().executionDirectory
+			);
 
 		} catch (Exception e) {
 			System.err.println("Hospital Management System Startup Failure.");
@@ -88,7 +104,7 @@ public class HospitalManagementSystem {
 	 * match the currently active user's hospitalId
 	 */
 	public static void setTarget(String issuerId, Object targetObject) throws CommandStackViolationException {
-		commandStack.peek().setTarget(issuerId, targetObject);
+		Session.current().commandStack.peek().setTarget(issuerId, targetObject);
 	}
 
 	
@@ -115,6 +131,7 @@ public class HospitalManagementSystem {
 	 * be cast to T.
 	 */
 	public static <T> T getParentTargetAs(Class<T> expectedType) throws CommandStackViolationException {
+		Deque<Invocable> commandStack = Session.current().commandStack;
 		if (commandStack.size() <= 1) throw new CommandStackViolationException(
 					"Command Stack Singular or Empty: This command has no parents, what are you trying to do?"
 		);
@@ -134,10 +151,11 @@ public class HospitalManagementSystem {
 	 * @throws Exception 
 	 */
 	public static void dispatchCommand(Invocable command) throws Exception {
+		Session session = Session.current();
 		try {
-			commandStack.push(command);
-			executionDirectory.push(command.getName());
-			command.invoke(activeUserHospitalId);
+			session.commandStack.push(command);
+			session.executionDirectory.push(command.getName());
+			command.invoke(session.activeUserHospitalId);
 		} catch (AccessDeniedException e) {
 			System.err.println("\n" + e.getMessage());
 			// future plan to call special error screen upon access violation
@@ -146,56 +164,129 @@ public class HospitalManagementSystem {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 		} finally { // other kinds of exceptions should be handled by the Managers themselves
-			commandStack.pop();
-			executionDirectory.pop();
+			session.commandStack.pop();
+			session.executionDirectory.pop();
 		}
 	}
 
 	/**
-	 * Checks whether the said hospitalId is logged in
+	 * Prints how long each table took to load, for the tables that have finished
+	 * loading since the last report.
+	 */
+	private static void reportLoadTimes() {
+		Map<String, Long> loadTimes = CSVHandler.getLoadTimes();
+		// reported once, by whichever session gets there first
+		loadTimes.keySet().stream().sorted().filter(reportedLoadTimes::add).forEach(t -> {
+			System.out.printf("Loaded %s in %.2f ms%n", t, loadTimes.get(t) / 1e6);
+		});
+	}
+
+	/**
+	 * Checks whether the said hospitalId is logged in, in the session of the caller
 	 * @param hospitalId id of the user to be checked
 	 * @return true if the user is logged in; false otherwise.
 	 */
 	public static boolean isLoggedIn(String hospitalId) {
-		return hospitalId.equals(activeUserHospitalId);
+		return hospitalId.equals(Session.current().activeUserHospitalId);
+	}
+
+	/**
+	 * Shuts the system down, if asked from the console. Sessions served over
+	 * the network cannot shut the system down; the server is stopped from its
+	 * own process instead.
+	 * @return false if the calling session may not shut the system down
+	 */
+	public static boolean shutdown() {
+		if (Session.current() != Session.console()) return false;
+
+		System.out.println("Shutting down System...");
+		PromptFormatter.clearScreen();
+		System.exit(0);
+		return true;
 	}
 
 	/*** HMS Entry Point ***/
 	public static void main(String[] args) throws Exception {
 		System.out.println("Initialising System...");
 		HospitalManagementSystemInit();
+		reportLoadTimes();
+
+		if (args.length == 2 && args[0].equals("--server")) {
+			serve(Integer.parseInt(args[1]));
+			return;
+		}
 
-		final Scanner inputScannerFinalDeclaration = inputScanner; // workaround
-		try (inputScannerFinalDeclaration) {
+		try (Session console = Session.console()) {
+			runSession(console);
+		}
+	}
+
+	/**
+	 * Accepts sessions on a local port until the system is shut down, each served
+	 * by a virtual thread of its own. Clients talk to their session as they would
+	 * to the console, e.g., through {@code nc localhost <port>}.
+	 * @param port the port to listen on, of the loopback address
+	 * @throws IOException if the port cannot be listened on
+	 */
+	private static void serve(int port) throws IOException {
+		Session.routeStandardStreams();
+
+		try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+			System.out.println("Accepting sessions on " + serverSocket.getLocalSocketAddress());
 
-			/*** System Loop (outermost application loop) ***/
 			while (true) {
-				promptLogin(inputScanner);
-
-				System.out.println("\nWelcome to HMS!\n");
-				if (PasswordManager.isNewUser(activeUserHospitalId)) {
-					
-					System.out.println("But first, you need to change your password.");
-					
-					dispatchCommand(new PasswordManager.Command("WRITE_PERSONAL_PASSWORD"));
-				}
-
-				executionDirectory.push(activeUserHospitalId + "@" + RoleManager.getRoleName(activeUserHospitalId));
-				// Login process successful. Passing control to active user
-				/*** User Loop (secondary loop), exits when user logs out ***/
-				activeUser.enterUI();
-
-				/*** Session ended ***/
-				executionDirectory.pop();
-				activeUser = null;
-				activeUserHospitalId = null;
-
-				PromptFormatter.clearScreen();
+				Socket socket = serverSocket.accept();
+				Thread.ofVirtual().name("session-" + socket.getPort()).start(() -> {
+					try (Session session = Session.open(socket)) {
+						session.attach();
+						runSession(session);
+					} catch (NoSuchElementException e) {
+						// the client hung up; its input ran out
+					} catch (Exception e) {
+						Session.console().err.println("Session " + socket.getPort() + " failed: " + e.getMessage());
+					}
+				});
 			}
 		}
 	}
 
-	private static void promptLogin(Scanner in) throws Exception {
+	/**
+	 * Runs the login and user loops of a session, until its input runs out.
+	 * @param session the session, attached to the calling thread
+	 * @throws Exception
+	 */
+	private static void runSession(Session session) throws Exception {
+		/*** System Loop (outermost application loop) ***/
+		while (true) {
+			promptLogin(session);
+			// the tables loaded in the background while the user was logging in
+			reportLoadTimes();
+
+			System.out.println("\nWelcome to HMS!\n");
+			if (PasswordManager.isNewUser(session.activeUserHospitalId)) {
+				
+				System.out.println("But first, you need to change your password.");
+				
+				dispatchCommand(new PasswordManager.Command("WRITE_PERSONAL_PASSWORD"));
+			}
+
+			session.executionDirectory.push(
+					session.activeUserHospitalId + "@" + RoleManager.getRoleName(session.activeUserHospitalId)
+			);
+			// Login process successful. Passing control to active user
+			/*** User Loop (secondary loop), exits when user logs out ***/
+			session.activeUser.enterUI();
+
+			/*** Session ended ***/
+			session.executionDirectory.pop();
+			session.activeUser = null;
+			session.activeUserHospitalId = null;
+
+			PromptFormatter.clearScreen();
+		}
+	}
+
+	private static void promptLogin(Session session) throws Exception {
 		String hospitalId = null;
 		String password = null;
 		// Prompt Login
@@ -215,14 +306,15 @@ public class HospitalManagementSystem {
 
 		try {
 			// login verified, retrieve user context
-			activeUser = UserManager.createUserContext(hospitalId);
+			session.activeUser = UserManager.createUserContext(hospitalId);
 			// sequence sensitive, DO NOT REARRANGE
-			activeUserHospitalId = hospitalId;
+			session.activeUserHospitalId = hospitalId;
 		} catch (Exception e) {
 
 			System.out.println("\nAn unexpected error occurred: ");
 			System.out.println("\n" + e.getMessage());
-			System.exit(1);
+			// only this session ends; the others are left running
+			throw e;
 		}
 	}
 
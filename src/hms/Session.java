@@ -0,0 +1,143 @@
+package hms;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Scanner;
+
+import hms.manager.Invocable;
+import hms.user.User;
+
+/**
+ * The execution state of one user of the system: where its input comes from
+ * and its output goes to, its command stack and execution directory, and who
+ * is logged in. There is one session for the console, and one for every client
+ * connected in server mode, each run by its own thread.
+ * <br><br>
+ * A thread works on behalf of the session {@link #attach() attached} to it,
+ * or of the console session if none is. Once {@link #routeStandardStreams()}
+ * is called, {@link System#out} and {@link System#err} write to the streams
+ * of that session, so that code printing to them needs no change.
+ */
+final class Session implements AutoCloseable {
+	private static final ThreadLocal<Session> currentSession = new ThreadLocal<Session>();
+	private static final Session consoleSession = new Session(new Scanner(System.in), System.out, System.err, null);
+
+	final Scanner in;
+	final PrintStream out;
+	final PrintStream err;
+	final Deque<Invocable> commandStack;
+	final Deque<String> executionDirectory;
+	String activeUserHospitalId;
+	User activeUser;
+	private final Socket socket;
+
+	/**
+	 * Writes to the stream of the session of the calling thread.
+	 */
+	private static class RoutedStream extends OutputStream {
+		private final boolean isErr;
+
+		private RoutedStream(boolean isErr) {
+			this.isErr = isErr;
+		}
+
+		private PrintStream target() {
+			Session session = current();
+			return isErr ? session.err : session.out;
+		}
+
+		@Override
+		public void write(int b) {
+			this.target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			this.target().flush();
+		}
+	}
+
+	private Session(Scanner in, PrintStream out, PrintStream err, Socket socket) {
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.commandStack = new ArrayDeque<Invocable>();
+		this.executionDirectory = new ArrayDeque<String>();
+		this.activeUserHospitalId = null;
+		this.activeUser = null;
+		this.socket = socket;
+	}
+
+	/**
+	 * @return the session of the console, reading from {@link System#in}.
+	 */
+	static Session console() {
+		return consoleSession;
+	}
+
+	/**
+	 * Opens a session over a connected socket, reading from and writing to it.
+	 * Both output streams of the session write to the socket.
+	 * @param socket the socket, closed together with the session
+	 * @return the session
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	static Session open(Socket socket) throws IOException {
+		PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+		return new Session(
+				new Scanner(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+				out,
+				out,
+				socket
+		);
+	}
+
+	/**
+	 * @return the session attached to the calling thread, or the console session
+	 *         if there is none.
+	 */
+	static Session current() {
+		Session session = currentSession.get();
+		return session == null ? consoleSession : session;
+	}
+
+	/**
+	 * Makes this the session of the calling thread.
+	 */
+	void attach() {
+		currentSession.set(this);
+	}
+
+	/**
+	 * Replaces {@link System#out} and {@link System#err} with streams that write
+	 * to the session of the calling thread. Encoding still takes place in the
+	 * replacing streams, which all sessions share; only the encoded bytes are
+	 * routed.
+	 */
+	static void routeStandardStreams() {
+		System.setOut(new PrintStream(new RoutedStream(false), true));
+		System.setErr(new PrintStream(new RoutedStream(true), true));
+	}
+
+	/**
+	 * Closes the input and, for a socket session, the socket, and detaches the
+	 * session from the calling thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (currentSession.get() == this) currentSession.remove();
+		in.close();
+		if (socket != null) socket.close();
+	}
+}
@@ -1,9 +1,12 @@
 package hms.manager;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -13,8 +16,11 @@ import hms.exception.CommandStackViolationException;
 import hms.exception.TableMismatchException;
 import hms.exception.TableQueryException;
 import hms.exception.UndefinedVariableException;
+import hms.exception.UserNotFoundException;
 import hms.target.MedicalRecordModifier;
 import hms.target.MedicationStockModifier;
+import hms.target.PrescriptionBatch;
+import hms.utility.CSVHandler;
 import hms.utility.Date;
 import hms.utility.PromptFormatter;
 import hms.utility.PromptFormatter.InputSession;
@@ -35,6 +41,7 @@ public class AppointmentManager extends HospitalResourceManager {
    private static AppointmentManager aInstance = null;
    private static TableHandler appointmentTableHandler;
    private static TableHandler doctorAppointmentTableHandler;
+   private static DoctorAvailability doctorAvailability = null;
 
 	// Table Variable
    private static final String APPOINTMENTID = "AppointmentId";
@@ -53,6 +60,10 @@ public class AppointmentManager extends HospitalResourceManager {
    private static final String MEDICATIONS = "Medications";
    private static final String PRESCRIPTION_STATUS = "Prescription Status";
    private static final String PRESCRIBED_QUANTITY = "Prescription Quantity";
+   // the statuses of a schedule slot that patients may request
+   private static final List<String> OPEN_SLOT_STATUSES = List.of(
+   	DoctorAvailability.AVAILABLE, DoctorAvailability.CANCELLED
+   	);
 
    private AppointmentManager() throws Exception {
       appointmentTableHandler = new TableHandler(
@@ -71,7 +82,31 @@ public class AppointmentManager extends HospitalResourceManager {
          			SCHEDULEID, DOCTORID, DAY, MONTH, YEAR, 
          			TIMESLOT, STATUS, APPOINTMENT, PATIENTID, APPOINTMENTID
          	), 
-         	0
+         	// mapped: the indexes below and the doctor calendar are only filled once
+         	// a session first looks a schedule up, so the file opens without being read
+         	0,
+         	CSVHandler.STRIP,
+         	CSVHandler.LoadMode.MAPPED
+         );
+   
+   	// Both tables see a steady stream of single-cell status changes, journal them
+   	// instead of rewriting the files on every change
+      appointmentTableHandler.setPersistenceMode(CSVHandler.PersistenceMode.JOURNAL);
+      doctorAppointmentTableHandler.setPersistenceMode(CSVHandler.PersistenceMode.JOURNAL);
+   
+   	// Nearly every query starts from a doctor or a patient, then narrows down by status
+      for (String variableName : Arrays.asList(DOCTORID, PATIENTID, STATUS)) {
+         appointmentTableHandler.createIndex(variableName);
+         doctorAppointmentTableHandler.createIndex(variableName);
+      }
+   	// ... or by date, for .between(...)
+      appointmentTableHandler.createDateTimeIndex(DAY, MONTH, YEAR, TIMESLOT);
+      doctorAppointmentTableHandler.createDateTimeIndex(DAY, MONTH, YEAR, TIMESLOT);
+   
+   	// built before any session can look up a slot, so that there is only ever one;
+   	// it is filled on the first lookup
+      doctorAvailability = new DoctorAvailability(
+         	doctorAppointmentTableHandler, SCHEDULEID, DOCTORID, DAY, MONTH, YEAR, TIMESLOT, STATUS
          );
    }
 
@@ -112,6 +147,7 @@ public class AppointmentManager extends HospitalResourceManager {
       }
    
       public void invoke(String hospitalId) throws Exception {
+         awaitInit(AppointmentManager.class);
          super.setIssuerId(hospitalId);
          if (!RoleManager.checkIdHasPermission(hospitalId, super.getCommand()))
             super.rejectCommand();
@@ -195,77 +231,72 @@ public class AppointmentManager extends HospitalResourceManager {
     * @throws TableMismatchException if there is a mismatch in the data table
     * @throws UndefinedVariableException if a required variable is undefined
     * @throws TableQueryException if there is an error querying the table
+    * @throws IOException if the changes cannot be written to the tables
     */
-   private static void provideRemoveUser() throws CommandStackViolationException, TableMismatchException, UndefinedVariableException, TableQueryException {
+   private static void provideRemoveUser() throws CommandStackViolationException, TableMismatchException, UndefinedVariableException, TableQueryException, UserNotFoundException, IOException {
       String removalId = HospitalManagementSystem.getParentTarget();
    	
-      doctorAppointmentTableHandler.new TableQuery(null).where(DOCTORID)
-         .matches(removalId)
-         .yield()
-         .forEach(
-         i -> {
-            try {
-               doctorAppointmentTableHandler.removeRow(i.get(0));
-            } catch (Exception e) {
-               e.printStackTrace();
-               System.exit(-1);
-            }
-         });
+      doctorAppointmentTableHandler.beginBatch();
+      try {
+         // a failed removal ends the calling session, not the system
+         for (List<String> i : doctorAppointmentTableHandler.new TableQuery(null).where(DOCTORID)
+            .matches(removalId)
+            .yield()) {
+            doctorAppointmentTableHandler.removeRow(i.get(0));
+         }
+      } finally {
+         doctorAppointmentTableHandler.commitBatch();
+      }
    	
-      appointmentTableHandler.new TableQuery(null).where(DOCTORID)
-         .matches(removalId)
-         .and()
-         .where(STATUS)
-         .doesNotMatch("Completed")
-         .yield()
-         .forEach(
-         i -> {
-            try {
-               String selectedAppointmentId = i.get(0);
-               appointmentTableHandler.updateVariable(selectedAppointmentId, STATUS, "Cancelled");
-               appointmentTableHandler.updateVariable(
-                  selectedAppointmentId, 
-                  APPOINTMENTID, 
-                  selectedAppointmentId + "C" + Instant.now().getEpochSecond()
-                  );
-            } catch (Exception e) {
-               e.printStackTrace();
-               System.exit(-1);
-            }
-         });
+      appointmentTableHandler.beginBatch();
+      try {
+         for (List<String> i : appointmentTableHandler.new TableQuery(null).where(DOCTORID)
+            .matches(removalId)
+            .and()
+            .where(STATUS)
+            .doesNotMatch("Completed")
+            .yield()) {
+            String selectedAppointmentId = i.get(0);
+            appointmentTableHandler.updateVariable(selectedAppointmentId, STATUS, "Cancelled");
+            appointmentTableHandler.updateVariable(
+               selectedAppointmentId, 
+               APPOINTMENTID, 
+               selectedAppointmentId + "C" + Instant.now().getEpochSecond()
+               );
+         }
+      } finally {
+         appointmentTableHandler.commitBatch();
+      }
    }
 	
-   	/**
-	 * Sorts a list of query results based on the date and time in ascending order.
-	 * <p>
-	 * This method extracts the date and time information from each query result row, then compares
-	 * and sorts the rows by their corresponding date and time values. The date and time columns
-	 * are identified by the `DAY` and `TIMESLOT` fields, and sorting is done using the `Date` class.
-	 * </p>
-	 * 
-	 * @param queryResult a list of lists where each inner list represents a row of data 
-	 *                    from the query result, and each row contains columns that include
-	 *                    the date and time information.
-	 * @return the sorted list of query results in ascending order by date and time.
-	 * @throws UndefinedVariableException if the `DAY` or `TIMESLOT` fields are not defined 
-	 *                                     in the table format.
-	 */
-   private static List<List<String>> sortFullColumnQueryResultByTime(TableHandler handler, List<List<String>> queryResult) {
-      try {
-         int dateStart = handler.format.indexOf(DAY);
-         int dateEnd = handler.format.indexOf(TIMESLOT) + 1;
-      	// figuring out a good way to sort these;
-         queryResult.sort(
-            (a1, a2) -> {
-               return new Date(a1.subList(dateStart, dateEnd))
-                  .compareTo(new Date(a2.subList(dateStart, dateEnd)));
-            });
-      } catch (UndefinedVariableException e) {
-         e.printStackTrace();
-         System.exit(-1);
+   /**
+    * Updates a row only while one of its variables holds one of the expected values.
+    * <p>
+    * The row is read with its version stamp and updated with a compare-and-set, so
+    * no lock is held in between. If another session changed the row first, the row
+    * is read again and, as long as the variable still holds an expected value, the
+    * update is retried; otherwise this method fails at once.
+    * </p>
+    *
+    * @param tableHandler the table holding the row
+    * @param id the id of the row
+    * @param variableName the variable to check
+    * @param expectedValues the values the variable may hold for the update to go ahead
+    * @param newValues the new values, by variable name
+    * @return the row as it was before the update; null if the row does not exist, or
+    *         the variable does not hold any of the expected values.
+    * @throws Exception If an error occurs during the table update.
+    */
+   private static List<String> updateIfMatches(
+   	TableHandler tableHandler, String id, String variableName, List<String> expectedValues, Map<String, String> newValues
+   	) throws Exception {
+      while (true) {
+         TableHandler.VersionedRow current = tableHandler.readVersionedRow(id);
+         if (current == null || !expectedValues.contains(tableHandler.getFromList(current.row(), variableName))) 
+            return null;
+         if (tableHandler.compareAndUpdate(id, current.version(), newValues)) 
+            return current.row();
       }
-   	
-      return queryResult;
    }
 	
    /**
@@ -289,21 +320,22 @@ public class AppointmentManager extends HospitalResourceManager {
       String month = timeInfo.getMonth();
       String day = timeInfo.getDay();
    
-      List<List<String>> availableSlots = doctorAppointmentTableHandler.new TableQuery(doctorAppointmentTableHandler.ALL_COLUMNS)
-         .where(STATUS).matches("Available")
-         .and()
-         .where(DAY).matches(day)
-         .and()
-         .where(MONTH).matches(month)
-         .and()
-         .where(YEAR).matches(year)
-         .yield();
+      long epochDay = Date.toEpochDay(timeInfo.toEpochMinutes());
+      List<List<String>> availableSlots = doctorAvailability
+         .findFreeScheduleIds(epochDay, false)
+         .stream().map(scheduleId -> doctorAppointmentTableHandler.readRow(scheduleId))
+         .toList();
    
    	// Print available timeslots
       if (TableQuery.isEmptyResult(availableSlots)) {
          System.out.println("> No available time slots for " + day + " " + month + " " + year + ".");
          return;
       }
+   
+      List<String> freeDoctorNames = new ArrayList<String>();
+      for (String doctorId : doctorAvailability.findFreeDoctors(epochDay, false)) {
+         freeDoctorNames.add(UserManager.getName(doctorId));
+      }
    	// int count = 1;
       List<String> availableTimeSlots = new ArrayList<>();
       for (List<String> row : availableSlots) {
@@ -316,6 +348,7 @@ public class AppointmentManager extends HospitalResourceManager {
       }
    	
       PromptFormatter.printSeparation("Available Time Slots");
+      System.out.println("Doctors available\t: " + String.join(", ", freeDoctorNames));
       for (String value : availableTimeSlots) {
          System.out.println("-\t" + value);
       }
@@ -345,19 +378,11 @@ public class AppointmentManager extends HospitalResourceManager {
       String month = timeInfo.getMonth();
       String day = timeInfo.getDay();
    	
-      List<List<String>> availableSlots = doctorAppointmentTableHandler.new TableQuery(
-         	doctorAppointmentTableHandler.ALL_COLUMNS
-         )
-         .where(STATUS).matches("Cancelled")
-         .or()
-         .where(STATUS).matches("Available")
-         .and()
-         .where(DAY).matches(day)
-         .and()
-         .where(MONTH).matches(month)
-         .and()
-         .where(YEAR).matches(year)
-         .yield();
+   	// ordered by time slot
+      List<List<String>> availableSlots = doctorAvailability
+         .findFreeScheduleIds(Date.toEpochDay(timeInfo.toEpochMinutes()), true)
+         .stream().map(scheduleId -> doctorAppointmentTableHandler.readRow(scheduleId))
+         .toList();
    	
       if (availableSlots.isEmpty()) {
          System.out.println("No available slots for " + day + " " + month + " " + year + ".");
@@ -368,7 +393,7 @@ public class AppointmentManager extends HospitalResourceManager {
    //      List<String> requiredColumns = Arrays.asList(DOCTORID, DAY, MONTH, YEAR, TIMESLOT);
    //      int doctorIdIndex = requiredColumns.indexOf(DOCTORID);
       
-      for (List<String> row : sortFullColumnQueryResultByTime(doctorAppointmentTableHandler, availableSlots)) {
+      for (List<String> row : availableSlots) {
          String format = "Doctor Name:\t" + UserManager.getName(doctorAppointmentTableHandler.getFromList(row, DOCTORID))
             	+ "\n\t\tDate:\t" + doctorAppointmentTableHandler.getFromList(row, DAY) + " "
             	+ doctorAppointmentTableHandler.getFromList(row, MONTH) + " "
@@ -416,26 +441,22 @@ public class AppointmentManager extends HospitalResourceManager {
          String day = doctorAppointmentTableHandler.getFromList(appointmentInfo, DAY);
          String time = doctorAppointmentTableHandler.getFromList(appointmentInfo, TIMESLOT);
       
-         String clashingAppointments = appointmentTableHandler.new TableQuery(null)
+         // the slot may have been taken while the patient was choosing it
+         TableHandler.VersionedRow slot = doctorAppointmentTableHandler.readVersionedRow(scheduleId);
+         if (slot == null || !OPEN_SLOT_STATUSES.contains(doctorAppointmentTableHandler.getFromList(slot.row(), STATUS))) {
+            System.out.println("This time slot has just been taken. Please choose another.");
+            continue;
+         }
+      
+         long slotTime = Date.pack(day, month, year, time);
+         TableQuery clashingAppointments = appointmentTableHandler.new TableQuery(null)
             .where(PATIENTID).matches(patientId)
             .and()
             .where(STATUS).doesNotMatch("Cancelled")
             .and()
             .where(STATUS).doesNotMatch("Completed")
             .and()
-            .where(DAY).matches(day)		// there must be a better way to do this date query, though.
-            .and()
-            .where(MONTH).matches(month)
-            .and()
-            .where(YEAR).matches(year)
-            .and()
-            .where(TIMESLOT).matches(time)
-            .execute().getSingleResult();
-      	
-         if (clashingAppointments != null) {
-            System.out.println("You have a Confirmed appointment for this time slot. Please try again.");
-            continue;
-         }
+            .between(slotTime, slotTime + 1);
       	
          if (scheduleId != null) scheduleId = scheduleId.replace("'", "");
          String newAppointmentId = "'" + patientId + scheduleId;
@@ -445,53 +466,27 @@ public class AppointmentManager extends HospitalResourceManager {
             	newAppointmentId, patientId, day, month, year, time, "Pending", doctorId
             );
       	
-      	// Update tables
-         appointmentTableHandler.addRow(
+      	// Update tables, unless a clashing request got in first
+         boolean isAdded = appointmentTableHandler.addRowIfAbsent(
             	Stream.concat(
             		newRow.stream(),
             		Stream.generate(
             			() -> "NA"
             		).limit(appointmentTableHandler.format.getVariableCount() - newRow.size())
-            	).collect(Collectors.toList())
+            	).collect(Collectors.toList()),
+            	clashingAppointments
             );
       	
+         if (!isAdded) {
+            System.out.println("You have a Confirmed appointment for this time slot. Please try again.");
+            continue;
+         }
          
          System.out.println("Appointment Status Pending.");
          returnHome = true;
       }
    }
 	
-   private static String localGetFromListNoThrow(TableHandler handler, List<String> row, String variableName) {
-      try {
-         return handler.getFromList(row, variableName);
-      } catch (UndefinedVariableException e) {
-         e.printStackTrace();
-      } catch (TableMismatchException e) {
-         e.printStackTrace();
-      }
-      return null;
-   }
-	
-   /**
-	 * Sorts a list of appointment IDs based on the date of the corresponding appointments.
-	 * <p>
-	 * This method retrieves appointment data for each provided appointment ID, sorts the data based on the 
-	 * appointment date, and returns a list of sorted appointment IDs.
-	 * </p>
-	 *
-	 * @param appointmentIds A list of appointment IDs to be sorted.
-	 * @return A list of appointment IDs sorted by their associated appointment date.
-	 */
-   private static List<String> sortAppointmentIdByDate(TableHandler handler, List<String> appointmentIds) {
-      return sortFullColumnQueryResultByTime(
-         handler, new ArrayList<List<String>>(
-         		appointmentIds.stream().map(id -> handler.readRow(id)).toList()
-         )
-         )
-         .stream().map(r -> localGetFromListNoThrow(handler, r, APPOINTMENTID))
-         .toList();
-   }
-	
    /**
 	 * Displays the past appointment outcomes for a specific patient.
 	 * <p>
@@ -521,23 +516,21 @@ public class AppointmentManager extends HospitalResourceManager {
             return;
       	
          completedAppointmentQuery.and()
-            .where(DAY).matches(date.getDay())
-            .and()
-            .where(MONTH).matches(date.getMonth())
-            .and()
-            .where(YEAR).matches(date.getYear());
+            .between(date.toEpochMinutes(), date.toEpochMinutes() + Date.MINUTES_PER_DAY);
       }
    	
       PromptFormatter.printSeparation("Past Appointment Outcomes");
    	
-      List<List<String>> queryResult = completedAppointmentQuery.yield();
+      List<List<String>> queryResult = completedAppointmentQuery
+         .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
+         .yield();
       if (TableQuery.isEmptyResult(queryResult)) {
          System.out.println("> No Appointment Outcome Records to Date.");
          return;
       }
    	
    	// flatten list
-      List<String> appointmentIds = sortAppointmentIdByDate(appointmentTableHandler, queryResult.stream().map(r -> r.getFirst()).toList());
+      List<String> appointmentIds = queryResult.stream().map(r -> r.getFirst()).toList();
       List<String> requiredColumns = Arrays.asList(TYPE_OF_SERVICE, MEDICATIONS, DIAGNOSES, TREATMENTS);
    	// query row only has one column, that is the appointmentId
       for (String appointmentId : appointmentIds) {
@@ -599,10 +592,19 @@ public class AppointmentManager extends HospitalResourceManager {
          Date timeInfo = PromptFormatter.collectDateInput();
          if (timeInfo == null) 
             return;
-      	
-         String year = timeInfo.getYear();
-         String month = timeInfo.getMonth();
-         String day = timeInfo.getDay();
+      
+      	// the first slot of the doctor still open to booking, from the chosen day on
+         String nextFreeScheduleId = doctorAvailability.findNextFreeScheduleId(doctorId, timeInfo.toEpochMinutes(), false);
+         if (nextFreeScheduleId == null) {
+            System.out.println("> No open slots from this day on.");
+         } else {
+            List<String> nextFreeSlot = doctorAppointmentTableHandler.readRow(nextFreeScheduleId);
+            System.out.println("> Next open slot: " 
+               	+ doctorAppointmentTableHandler.getFromList(nextFreeSlot, DAY) + " "
+               	+ doctorAppointmentTableHandler.getFromList(nextFreeSlot, MONTH) + " "
+               	+ doctorAppointmentTableHandler.getFromList(nextFreeSlot, YEAR) + " "
+               	+ doctorAppointmentTableHandler.getFromList(nextFreeSlot, TIMESLOT));
+         }
       
          List<List<String>> confirmedAppointments = doctorAppointmentTableHandler.new TableQuery(
             	doctorAppointmentTableHandler.ALL_COLUMNS
@@ -611,11 +613,8 @@ public class AppointmentManager extends HospitalResourceManager {
             .and()
             .where(STATUS).matches("Confirmed")
             .and()
-            .where(DAY).matches(day)
-            .and()
-            .where(MONTH).matches(month)
-            .and()
-            .where(YEAR).matches(year)
+            .between(timeInfo.toEpochMinutes(), timeInfo.toEpochMinutes() + Date.MINUTES_PER_DAY)
+            .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
             .yield();
       
          if (TableQuery.isEmptyResult(confirmedAppointments)) {
@@ -623,8 +622,7 @@ public class AppointmentManager extends HospitalResourceManager {
             return;
          }
       
-         sortedInfo = new ArrayList<>();
-         sortedInfo = sortFullColumnQueryResultByTime(doctorAppointmentTableHandler, confirmedAppointments);
+         sortedInfo = confirmedAppointments;
          List<String>formattedSortedInfo = PromptFormatter.formatFullColumnSubtable(
             	Arrays.asList(TIMESLOT, APPOINTMENT), sortedInfo, doctorAppointmentTableHandler
             );
@@ -673,17 +671,9 @@ public class AppointmentManager extends HospitalResourceManager {
             continue;
          }
       
-         String checkClash = doctorAppointmentTableHandler.new TableQuery(null)
-            .where(DOCTORID).matches(doctorId)
-            .and()
-            .where(DAY).matches(day)
-            .and()
-            .where(TIMESLOT).matches(targetTime)
-            .and()
-            .where(MONTH).matches(month)
-            .and()
-            .where(YEAR).matches(year)
-            .execute().getSingleResult();
+         String checkClash = doctorAvailability.findScheduleId(
+            	Date.toEpochDay(timeInfo.toEpochMinutes()), doctorId, Date.parseTimeSlot(targetTime)
+            );
       	
          if (checkClash != null) {
             System.out.println("> You have an active appointment for this time slot. Please try again.");
@@ -692,7 +682,7 @@ public class AppointmentManager extends HospitalResourceManager {
       
          String status = null;
          System.out.println("Enter appointment details:\t");
-         String appointmentDetails = Command.inputScanner.nextLine();
+         String appointmentDetails = Command.getInputScanner().nextLine();
       
          if (appointmentDetails.toLowerCase().equals("consultation")) {
             status = "Available";
@@ -700,11 +690,22 @@ public class AppointmentManager extends HospitalResourceManager {
             status = "Confirmed";
          }
       
-         String newScheduleId = "'" + doctorId + year + Date.ALL_MONTHS.indexOf(month) + day + targetTime.replaceAll(":", "");
+         String newScheduleId = "'" + doctorId + year + Date.parseMonth(month) + day + targetTime.replaceAll(":", "");
+      
+         // checked again on adding, in case another session of the doctor took the slot meanwhile
+         long slotTime = timeInfo.toEpochMinutes() + Date.parseTimeSlot(targetTime);
+         boolean isAdded = doctorAppointmentTableHandler.addRowIfAbsent(
+            Arrays.asList(newScheduleId, doctorId, day, month, year, targetTime, status, appointmentDetails, "NA", "NA"),
+            doctorAppointmentTableHandler.new TableQuery(null)
+               .where(DOCTORID).matches(doctorId)
+               .and()
+               .between(slotTime, slotTime + 1)
+            );
       
-         doctorAppointmentTableHandler.addRow(Arrays.asList(
-            newScheduleId, doctorId, day, month, year, targetTime, status, appointmentDetails, "NA", "NA"
-            ));
+         if (!isAdded) {
+            System.out.println("> You have an active appointment for this time slot. Please try again.");
+            continue;
+         }
       
          if (appointmentDetails.toLowerCase().equals("consultation")) {
             System.out.println("> Status Available for consultation.");
@@ -734,6 +735,7 @@ public class AppointmentManager extends HospitalResourceManager {
          .where(DOCTORID).matches(doctorId)
          .and()
          .where(STATUS).matches("Pending")
+         .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
          .yield();
    	
       boolean returnHome = false;
@@ -744,7 +746,6 @@ public class AppointmentManager extends HospitalResourceManager {
             return;
          }
       
-         pendingAppointments = sortFullColumnQueryResultByTime(appointmentTableHandler, pendingAppointments);
          List<String> pendingAppointmentsFormatted = new ArrayList<>();
       	
          for (List<String> row : pendingAppointments) {
@@ -780,54 +781,88 @@ public class AppointmentManager extends HospitalResourceManager {
             	chosenAppointment, APPOINTMENTID
             );
       	
+         long chosenTime = Date.pack(
+            	appointmentTableHandler.getFromList(chosenAppointment, DAY),
+            	appointmentTableHandler.getFromList(chosenAppointment, MONTH),
+            	appointmentTableHandler.getFromList(chosenAppointment, YEAR),
+            	appointmentTableHandler.getFromList(chosenAppointment, TIMESLOT)
+            );
          String scheduleId = doctorAppointmentTableHandler.new TableQuery(null)
             .where(DOCTORID).matches(doctorId)
             .and()
-            .where(DAY).matches(appointmentTableHandler.getFromList(chosenAppointment, DAY))
-            .and()
-            .where(MONTH).matches(appointmentTableHandler.getFromList(chosenAppointment, MONTH))
-            .and()
-            .where(YEAR).matches(appointmentTableHandler.getFromList(chosenAppointment, YEAR))
-            .and()
-            .where(TIMESLOT).matches(appointmentTableHandler.getFromList(chosenAppointment, TIMESLOT))
+            .between(chosenTime, chosenTime + 1)
             .execute().getSingleResult();
       	
          if (scheduleId == null) throw new Exception("DEBUG ASSERTION FAILED. scheduleId was null");
       
          if (decision.equals("Approve")) {
-            doctorAppointmentTableHandler.updateVariable(scheduleId, STATUS, "Confirmed");
-            doctorAppointmentTableHandler.updateVariable(scheduleId, PATIENTID, appointmentTableHandler.getFromList(chosenAppointment, PATIENTID));
-            doctorAppointmentTableHandler.updateVariable(scheduleId, APPOINTMENTID, appointmentId);
-            appointmentTableHandler.updateVariable(appointmentId, STATUS, "Confirmed");
+            // The slot is claimed first, so that of two requests for it approved at
+            // once only one goes through
+            List<String> claimedSlot = updateIfMatches(
+               	doctorAppointmentTableHandler, scheduleId, STATUS, OPEN_SLOT_STATUSES, Map.of(
+               		STATUS, "Confirmed",
+               		PATIENTID, appointmentTableHandler.getFromList(chosenAppointment, PATIENTID),
+               		APPOINTMENTID, appointmentId
+               	)
+               );
+            if (claimedSlot == null) {
+               System.out.println("This time slot has already been confirmed for another appointment.");
+               return;
+            }
          	
-            List<List<String>> otherAppointments = appointmentTableHandler.new TableQuery(
-               	appointmentTableHandler.ALL_COLUMNS
-               )
-               .where(DOCTORID).matches(doctorId)
-               .and()
-               .where(STATUS).matches("Pending")
-               .and()
-               .where(DAY).matches(appointmentTableHandler.getFromList(chosenAppointment, DAY))
-               .and()
-               .where(MONTH).matches(appointmentTableHandler.getFromList(chosenAppointment, MONTH))
-               .and()
-               .where(YEAR).matches(appointmentTableHandler.getFromList(chosenAppointment, YEAR))
-               .and()
-               .where(TIMESLOT).matches(appointmentTableHandler.getFromList(chosenAppointment, TIMESLOT))
-               .yield();
+            // the confirmation and the cancellation of the clashing requests land together
+            boolean isConfirmed;
+            appointmentTableHandler.beginBatch();
+            try {
+               isConfirmed = updateIfMatches(
+                  	appointmentTableHandler, appointmentId, STATUS, List.of("Pending"), Map.of(STATUS, "Confirmed")
+                  ) != null;
+               
+               List<List<String>> otherAppointments = !isConfirmed ? List.of() : appointmentTableHandler.new TableQuery(
+                  	appointmentTableHandler.ALL_COLUMNS
+                  )
+                  .where(DOCTORID).matches(doctorId)
+                  .and()
+                  .where(STATUS).matches("Pending")
+                  .and()
+                  .between(chosenTime, chosenTime + 1)
+                  .yield();
          	
-            for (List<String> otherAppointment : otherAppointments) {
-               String otherAppointmentId = appointmentTableHandler.getFromList(otherAppointment, APPOINTMENTID);
-               if (!otherAppointmentId.equals(appointmentId)) {
-                  appointmentTableHandler.updateVariable(otherAppointmentId, STATUS, "Cancelled");
+               for (List<String> otherAppointment : otherAppointments) {
+                  String otherAppointmentId = appointmentTableHandler.getFromList(otherAppointment, APPOINTMENTID);
+                  if (!otherAppointmentId.equals(appointmentId)) {
+                     updateIfMatches(
+                     	appointmentTableHandler, otherAppointmentId, STATUS, List.of("Pending"), Map.of(STATUS, "Cancelled")
+                     	);
+                  }
                }
+            } finally {
+               appointmentTableHandler.commitBatch();
+            }
+         	
+            if (!isConfirmed) {
+               // the patient withdrew the request meanwhile, so the slot goes back as it was
+               updateIfMatches(
+                  	doctorAppointmentTableHandler, scheduleId, APPOINTMENTID, List.of(appointmentId), Map.of(
+                  		STATUS, doctorAppointmentTableHandler.getFromList(claimedSlot, STATUS),
+                  		PATIENTID, doctorAppointmentTableHandler.getFromList(claimedSlot, PATIENTID),
+                  		APPOINTMENTID, doctorAppointmentTableHandler.getFromList(claimedSlot, APPOINTMENTID)
+                  	)
+                  );
+               System.out.println("This request is no longer pending.");
+               return;
             }
          	
             System.out.println("Appointment Confirmed.");
             return;
          }
       	
-         appointmentTableHandler.updateVariable(appointmentId, STATUS, "Cancelled");
+         if (updateIfMatches(
+            	appointmentTableHandler, appointmentId, STATUS, List.of("Pending"), Map.of(STATUS, "Cancelled")
+            ) == null) {
+            System.out.println("This request is no longer pending.");
+            return;
+         }
          System.out.println("Appointment Cancelled.");
       	
          return;
@@ -853,6 +888,7 @@ public class AppointmentManager extends HospitalResourceManager {
          .where(DOCTORID).matches(doctorId)
          .and()
          .where(STATUS).matches("Confirmed")
+         .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
          .yield();
    	
       if (TableQuery.isEmptyResult(appointmentInfo)) {
@@ -861,7 +897,7 @@ public class AppointmentManager extends HospitalResourceManager {
       }
    	
       List<String> consultationInfoFormatted = new ArrayList<>();
-      for (List<String> row : sortFullColumnQueryResultByTime(appointmentTableHandler, appointmentInfo)) {
+      for (List<String> row : appointmentInfo) {
          String format = "\tPatient ID:\t" + appointmentTableHandler.getFromList(row, "PatientId")
                + "\n\t\tDate:\t" + appointmentTableHandler.getFromList(row, DAY) + " "
                + appointmentTableHandler.getFromList(row, MONTH) + " "
@@ -1069,14 +1105,13 @@ public class AppointmentManager extends HospitalResourceManager {
          .where(DOCTORID).matches(doctorId)
          .and()
          .where(PATIENTID).matches(patientId)
+         .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
          .yield();
    
       if (TableQuery.isEmptyResult(confirmedAppointments)) {
          System.out.println("No confirmed appointments!");
          return;
       }
-   	
-      confirmedAppointments = sortFullColumnQueryResultByTime(doctorAppointmentTableHandler, confirmedAppointments);
    
       List<String> confirmedAppointmentsFormatted = new ArrayList<>();
       for (List<String> row : confirmedAppointments) {
@@ -1124,115 +1159,137 @@ public class AppointmentManager extends HospitalResourceManager {
          return;
    
    	
-   	// add diagnoses for newly completed appointments
-      int valueIndex = -1;
+   	// The outcome is collected over several prompts, the cells filled in so far
+   	// are written out together once the doctor is done or backs out. They are
+   	// held back until then, as a batch must not stay open across prompts
+      Map<String, String> outcomeCells = new LinkedHashMap<String, String>();
+      try {
+      	// add diagnoses for newly completed appointments
+         int valueIndex = -1;
       
-      List<String> diagnosesValue = new ArrayList<>();
-      for (int i = 0; i < diagnosesCount; i++) {
-         diagnosesValue
-            	.add(new PromptFormatter.InputSession<String>("Please enter " + DIAGNOSES + " " + (i + 1) + "", true)
-            			.startPrompt());
+         List<String> diagnosesValue = new ArrayList<>();
+         for (int i = 0; i < diagnosesCount; i++) {
+            diagnosesValue
+               	.add(new PromptFormatter.InputSession<String>("Please enter " + DIAGNOSES + " " + (i + 1) + "", true)
+               			.startPrompt());
       
-         MedicalRecordModifier commandTarget = new MedicalRecordModifier("Add", DIAGNOSES, patientId, valueIndex,
-            	new Date(Arrays.asList(day, month, year, timeSlot)), diagnosesValue.get(i));
+            MedicalRecordModifier commandTarget = new MedicalRecordModifier("Add", DIAGNOSES, patientId, valueIndex,
+               	new Date(Arrays.asList(day, month, year, timeSlot)), diagnosesValue.get(i));
       
-         HospitalManagementSystem.setTarget(doctorId, commandTarget);
-         HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
-      }
-      String diagnosesCell = String.join(";", diagnosesValue);
-      diagnosesCell += ";";
-      appointmentTableHandler.updateVariable(appointmentId, DIAGNOSES, diagnosesCell);
+            HospitalManagementSystem.setTarget(doctorId, commandTarget);
+            HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
+         }
+         String diagnosesCell = String.join(";", diagnosesValue);
+         diagnosesCell += ";";
+         outcomeCells.put(DIAGNOSES, diagnosesCell);
    	
    
-   	// add treatments for newly completed appointments
-      Integer treatmentCount = new PromptFormatter.InputSession<Integer>("Enter number of " + TREATMENTS)
-           .setConverter(Integer::parseInt)
-           .setValidator(n -> n > 0)
-           .setOnInvalidInput("Input must be a number greater than zero!")
-           .startPrompt();
-      if (treatmentCount == null) 
-         return;
+      	// add treatments for newly completed appointments
+         Integer treatmentCount = new PromptFormatter.InputSession<Integer>("Enter number of " + TREATMENTS)
+              .setConverter(Integer::parseInt)
+              .setValidator(n -> n > 0)
+              .setOnInvalidInput("Input must be a number greater than zero!")
+              .startPrompt();
+         if (treatmentCount == null) 
+            return;
       
-      List<String> treatmentsValue = new ArrayList<>();
-      for (int i = 0; i < treatmentCount; i++) {
-         treatmentsValue
-            	.add(new PromptFormatter.InputSession<String>("Please enter " + TREATMENTS + " " + (i + 1) + "", true)
-            			.startPrompt());
+         List<String> treatmentsValue = new ArrayList<>();
+         for (int i = 0; i < treatmentCount; i++) {
+            treatmentsValue
+               	.add(new PromptFormatter.InputSession<String>("Please enter " + TREATMENTS + " " + (i + 1) + "", true)
+               			.startPrompt());
       
-         MedicalRecordModifier commandTarget = new MedicalRecordModifier("Add", TREATMENTS, patientId, valueIndex,
-            	new Date(Arrays.asList(day, month, year, timeSlot)), treatmentsValue.get(i));
+            MedicalRecordModifier commandTarget = new MedicalRecordModifier("Add", TREATMENTS, patientId, valueIndex,
+               	new Date(Arrays.asList(day, month, year, timeSlot)), treatmentsValue.get(i));
       
-         HospitalManagementSystem.setTarget(doctorId, commandTarget);
-         HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
-      }
-      String treatmentsCell = String.join(";", treatmentsValue);
-      treatmentsCell += ";";
-      appointmentTableHandler.updateVariable(appointmentId, TREATMENTS, treatmentsCell);
+            HospitalManagementSystem.setTarget(doctorId, commandTarget);
+            HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
+         }
+         String treatmentsCell = String.join(";", treatmentsValue);
+         treatmentsCell += ";";
+         outcomeCells.put(TREATMENTS, treatmentsCell);
    	
-   	// add medications for newly completed appointments
-      Integer medicationCount = new PromptFormatter.InputSession<Integer>("Enter number of " + MEDICATIONS)
-           .setConverter(Integer::parseInt)
-           .setValidator(n -> n > 0)
-           .setOnInvalidInput("Input must be a number greater than zero!")
-           .startPrompt();
-      if (medicationCount == null) 
-         return;
+      	// add medications for newly completed appointments
+         Integer medicationCount = new PromptFormatter.InputSession<Integer>("Enter number of " + MEDICATIONS)
+              .setConverter(Integer::parseInt)
+              .setValidator(n -> n > 0)
+              .setOnInvalidInput("Input must be a number greater than zero!")
+              .startPrompt();
+         if (medicationCount == null) 
+            return;
       
-      List<String> medicationsValue = new ArrayList<>();
-      for (int i = 0; i < medicationCount; i++) {
-         medicationsValue
-            	.add(new PromptFormatter.InputSession<String>("Please enter " + MEDICATIONS + " " + (i + 1) + "", true)
-            			.startPrompt());
-                       
-         MedicationStockModifier commandTarget1 = new MedicationStockModifier(medicationsValue.get(i), 1, false);
-         HospitalManagementSystem.setTarget(doctorId, commandTarget1);
-         HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("CHECK_FOR_MEDICINE"));
-         if (!commandTarget1.getavalibility()) {
-            System.out.println(medicationsValue.get(i) + " is not available");
-            medicationsValue.remove(i);
-            i--;
-            continue;
-         }           
+         List<MedicationStockModifier> prescribedMedicines = new ArrayList<>();
+         for (int i = 0; i < medicationCount; i++) {
+            String medicineName = new PromptFormatter.InputSession<String>("Please enter " + MEDICATIONS + " " + (i + 1) + "", true)
+               	.startPrompt();
+         	// a medication left out with -q is not prescribed
+            if (medicineName == null) 
+               continue;
+            prescribedMedicines.add(new MedicationStockModifier(medicineName, 1, false));
+         }
       
-         MedicalRecordModifier commandTarget2 = new MedicalRecordModifier("Add", MEDICATIONS, patientId, valueIndex,
-            	new Date(Arrays.asList(day, month, year, timeSlot)), medicationsValue.get(i));
+      	// the stock of all of them is checked at once
+         HospitalManagementSystem.setTarget(doctorId, new PrescriptionBatch(prescribedMedicines));
+         HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("CHECK_PRESCRIPTION"));
       
-         HospitalManagementSystem.setTarget(doctorId, commandTarget2);
-         HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
-      }
-      String medicationsCell = String.join(";", medicationsValue);
-      medicationsCell += ";";
-      appointmentTableHandler.updateVariable(appointmentId, MEDICATIONS, medicationsCell);
+         List<String> medicationsValue = new ArrayList<>();
+         for (MedicationStockModifier medicine : prescribedMedicines) {
+            if (!medicine.getavalibility()) {
+               System.out.println(medicine.getmedicineName() + " is not available");
+               continue;
+            }
+            medicationsValue.add(medicine.getmedicineName());
+         }
+         for (int i = 0; i < medicationsValue.size(); i++) {
+            MedicalRecordModifier commandTarget2 = new MedicalRecordModifier("Add", MEDICATIONS, patientId, valueIndex,
+               	new Date(Arrays.asList(day, month, year, timeSlot)), medicationsValue.get(i));
+      
+            HospitalManagementSystem.setTarget(doctorId, commandTarget2);
+            HospitalManagementSystem.dispatchCommand(new MedicalRecordManager.Command("WRITE_ANY_MEDICAL_RECORD"));
+         }
+         String medicationsCell = String.join(";", medicationsValue);
+         medicationsCell += ";";
+         outcomeCells.put(MEDICATIONS, medicationsCell);
    	
-   	// add type of service for newly completed appointments
-      Integer serviceCount = new PromptFormatter.InputSession<Integer>("Enter number of " + TYPE_OF_SERVICE)
-           .setConverter(Integer::parseInt)
-           .setValidator(n -> n > 0)
-           .setOnInvalidInput("Input must be a number greater than zero!")
-           .startPrompt();
-      if (serviceCount == null) 
-         return;
+      	// add type of service for newly completed appointments
+         Integer serviceCount = new PromptFormatter.InputSession<Integer>("Enter number of " + TYPE_OF_SERVICE)
+              .setConverter(Integer::parseInt)
+              .setValidator(n -> n > 0)
+              .setOnInvalidInput("Input must be a number greater than zero!")
+              .startPrompt();
+         if (serviceCount == null) 
+            return;
       
-      List<String> serviceValue = new ArrayList<>();
-      for (int i = 0; i < serviceCount; i++) {
-         serviceValue.add(
-            	new PromptFormatter.InputSession<String>("Please enter " + TYPE_OF_SERVICE + " " + (i + 1) + "", true)
-            			.startPrompt());
-      }
-      String serviceCell = String.join(";", serviceValue);
-      serviceCell += ";";
-      System.out.println(serviceCell);
-      appointmentTableHandler.updateVariable(appointmentId, TYPE_OF_SERVICE, serviceCell);
+         List<String> serviceValue = new ArrayList<>();
+         for (int i = 0; i < serviceCount; i++) {
+            serviceValue.add(
+               	new PromptFormatter.InputSession<String>("Please enter " + TYPE_OF_SERVICE + " " + (i + 1) + "", true)
+               			.startPrompt());
+         }
+         String serviceCell = String.join(";", serviceValue);
+         serviceCell += ";";
+         System.out.println(serviceCell);
+         outcomeCells.put(TYPE_OF_SERVICE, serviceCell);
    
-   	// update prescription info
-      appointmentTableHandler.updateVariable(appointmentId, PRESCRIPTION_STATUS, "Pending");
-      appointmentTableHandler.updateVariable(appointmentId, PRESCRIBED_QUANTITY, "1");
+      	// update prescription info
+         outcomeCells.put(PRESCRIPTION_STATUS, "Pending");
+         outcomeCells.put(PRESCRIBED_QUANTITY, "1");
    
-   	// update appointment status to completed
-      String newStatus = "Completed";
-      doctorAppointmentTableHandler.updateVariable(scheduleId, STATUS, newStatus);
-      appointmentTableHandler.updateVariable(appointmentId, STATUS, newStatus);
-      System.out.println("Appointment " + newStatus + ".");
+      	// update appointment status to completed
+         String newStatus = "Completed";
+         doctorAppointmentTableHandler.updateVariable(scheduleId, STATUS, newStatus);
+         outcomeCells.put(STATUS, newStatus);
+         System.out.println("Appointment " + newStatus + ".");
+      } finally {
+         appointmentTableHandler.beginBatch();
+         try {
+            for (Map.Entry<String, String> outcomeCell : outcomeCells.entrySet()) {
+               appointmentTableHandler.updateVariable(appointmentId, outcomeCell.getKey(), outcomeCell.getValue());
+            }
+         } finally {
+            appointmentTableHandler.commitBatch();
+         }
+      }
    }
 
    /**
@@ -1293,11 +1350,7 @@ public class AppointmentManager extends HospitalResourceManager {
          .where(PATIENTID).matches(patientId)
          .where(STATUS).matches("Completed")
          .and()
-         .where(DAY).matches(day)
-         .and()
-         .where(MONTH).matches(month)
-         .and()
-         .where(YEAR).matches(year)
+         .between(timeInfo.toEpochMinutes(), timeInfo.toEpochMinutes() + Date.MINUTES_PER_DAY)
          .yield();
    
    	// Print available timeslots
@@ -1343,6 +1396,7 @@ public class AppointmentManager extends HospitalResourceManager {
          .where(PATIENTID).matches(patientId)
          .and()
          .where(STATUS).matches("Confirmed")
+         .orderByDateTime(DAY, MONTH, YEAR, TIMESLOT)
          .yield();
    
       if (TableQuery.isEmptyResult(appointmentInfo)) {
@@ -1350,7 +1404,7 @@ public class AppointmentManager extends HospitalResourceManager {
          return;
       }
    
-      for (List<String> row : sortFullColumnQueryResultByTime(appointmentTableHandler, appointmentInfo)) {
+      for (List<String> row : appointmentInfo) {
          String format = "\tDoctor Name:\t" + UserManager.getName(appointmentTableHandler.getFromList(row, DOCTORID))
             	+ "\n\t\tDate:\t" + appointmentTableHandler.getFromList(row, DAY) + " "
             	+ appointmentTableHandler.getFromList(row, MONTH) + " "
@@ -1427,15 +1481,18 @@ public class AppointmentManager extends HospitalResourceManager {
          	confirmedAppointments.get(choice), APPOINTMENTID
          );
    	
-      appointmentTableHandler.updateVariable(selectedAppointmentId, STATUS, "Cancelled");
-   	
-   	
       String lapsedAppointmentId = selectedAppointmentId + "C" + Instant.now().getEpochSecond();
-   	// Update the Appointment ID to indicate its cancelled status
-   	// This allows the patient to reschedule on the exact same time slot
-      appointmentTableHandler.updateVariable(
-         	selectedAppointmentId, APPOINTMENTID, lapsedAppointmentId
-         );
+      appointmentTableHandler.beginBatch();
+      try {
+         appointmentTableHandler.updateVariable(selectedAppointmentId, STATUS, "Cancelled");
+      	// Update the Appointment ID to indicate its cancelled status
+      	// This allows the patient to reschedule on the exact same time slot
+         appointmentTableHandler.updateVariable(
+            	selectedAppointmentId, APPOINTMENTID, lapsedAppointmentId
+            );
+      } finally {
+         appointmentTableHandler.commitBatch();
+      }
    	
       String doctorScheduleId = doctorAppointmentTableHandler.new TableQuery(null)
          	.where(APPOINTMENTID).matches(selectedAppointmentId)
@@ -1443,9 +1500,14 @@ public class AppointmentManager extends HospitalResourceManager {
    	
       String lapsedScheduleId = doctorScheduleId + "C" + Instant.now().getEpochSecond();
    	
-      doctorAppointmentTableHandler.updateVariable(doctorScheduleId, APPOINTMENTID, lapsedAppointmentId);
-      doctorAppointmentTableHandler.updateVariable(doctorScheduleId, STATUS, "Available");
-      doctorAppointmentTableHandler.updateVariable(doctorScheduleId, SCHEDULEID, lapsedScheduleId);
+      doctorAppointmentTableHandler.beginBatch();
+      try {
+         doctorAppointmentTableHandler.updateVariable(doctorScheduleId, APPOINTMENTID, lapsedAppointmentId);
+         doctorAppointmentTableHandler.updateVariable(doctorScheduleId, STATUS, "Available");
+         doctorAppointmentTableHandler.updateVariable(doctorScheduleId, SCHEDULEID, lapsedScheduleId);
+      } finally {
+         doctorAppointmentTableHandler.commitBatch();
+      }
    	
       System.out.println("Successfully cancelled appointment!");
    	
@@ -1510,9 +1572,9 @@ public class AppointmentManager extends HospitalResourceManager {
 	 * Updates the prescription status of an appointment based on medication availability.
 	 * 
 	 * <p>The method retrieves the prescribed medications for the appointment identified by
-	 * {@code appointmentId}. It checks if the required medications are available in stock
-	 * and updates the prescription status to "Dispensed" if all medications are available.
-	 * If any medication is unavailable, the prescription status remains unchanged.</p>
+	 * {@code appointmentId}. The prescription is claimed first, by setting its status to
+	 * "Dispensed" with a compare-and-set, so that no other session dispenses it as well.
+	 * If any medication is then unavailable, the prescription status is put back.</p>
 	 * 
 	 * @param pharmacistId the ID of the pharmacist performing the update.
 	 * @throws Exception if an error occurs during medication validation or stock updates.
@@ -1522,44 +1584,56 @@ public class AppointmentManager extends HospitalResourceManager {
       if (appointmentId == null){
          return;
       }
-      String[] medications = appointmentTableHandler.readVariable(appointmentId, MEDICATIONS).split(";");
-      Boolean doPrescribe = true;
-      
-      if (!"NA".equals(medications[0]) && !"Dispensed".equals(appointmentTableHandler.readVariable(appointmentId, PRESCRIPTION_STATUS))) {
-         for (String medicine : medications) {
-            int deductQty = Integer
-               	.parseInt(appointmentTableHandler.readVariable(appointmentId, PRESCRIBED_QUANTITY));
-            MedicationStockModifier commandTarget = new MedicationStockModifier(medicine, deductQty, false);
-         
-            HospitalManagementSystem.setTarget(pharmacistId, commandTarget);
-            HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("CHECK_FOR_MEDICINE"));
-            if (!commandTarget.getavalibility()) {
-               doPrescribe = false;
-               System.out.println(medicine + " not available");
-            }
+   
+   	// Claim the prescription before taking any stock: of two sessions dispensing it,
+   	// only the one whose compare-and-set lands goes on
+      TableHandler.VersionedRow claimed;
+      while (true) {
+         claimed = appointmentTableHandler.readVersionedRow(appointmentId);
+         if (claimed == null) 
+            return;
+         if ("NA".equals(appointmentTableHandler.getFromList(claimed.row(), MEDICATIONS).split(";")[0])) {
+            System.out.println("There is no medication to dispense");
+            return;
          }
-      
-         if (doPrescribe) {
-            for (String medicine : medications) {
-               int deductQty = Integer
-                  	.parseInt(appointmentTableHandler.readVariable(appointmentId, PRESCRIBED_QUANTITY));
-               MedicationStockModifier commandTarget = new MedicationStockModifier(medicine, deductQty, true);
-            
-               HospitalManagementSystem.setTarget(pharmacistId, commandTarget);
-               HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("UPDATE_STOCK_VALUE"));
-            }
-            appointmentTableHandler.updateVariable(appointmentId, PRESCRIPTION_STATUS, "Dispensed");
-            System.out.println("Updated Appointment " + appointmentId + "'s prescription status");
-            viewAppointmentOutcomeRecord();
-         } else {
-            System.out.println("Unable to dispense due to lack of medications");
+         if ("Dispensed".equals(appointmentTableHandler.getFromList(claimed.row(), PRESCRIPTION_STATUS))) {
+            System.out.println("The medication has already been dispensed.");
+            return;
          }
+         if (appointmentTableHandler.compareAndUpdate(
+            	appointmentId, claimed.version(), Map.of(PRESCRIPTION_STATUS, "Dispensed"))) 
+            break;
+      }
+      
+      String[] medications = appointmentTableHandler.getFromList(claimed.row(), MEDICATIONS).split(";");
+      int deductQty = Integer.parseInt(appointmentTableHandler.getFromList(claimed.row(), PRESCRIBED_QUANTITY));
+      List<MedicationStockModifier> prescribedMedicines = new ArrayList<>();
+      for (String medicine : medications) {
+         prescribedMedicines.add(new MedicationStockModifier(medicine, deductQty, false));
       }
-      else if("Dispensed".equals(appointmentTableHandler.readVariable(appointmentId, PRESCRIPTION_STATUS))){
-         System.out.println("The medication has already been dispensed.");
-      } 
-      else {
-         System.out.println("There is no medication to dispense");
+   
+   	// all of them are dispensed, or none is
+      PrescriptionBatch prescription = new PrescriptionBatch(prescribedMedicines);
+      try {
+         HospitalManagementSystem.setTarget(pharmacistId, prescription);
+         HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("DISPENSE_PRESCRIPTION"));
+      } finally {
+      	// nothing was taken, give the claim back
+         if (!prescription.isDispensed()) 
+            appointmentTableHandler.updateVariable(
+               	appointmentId, PRESCRIPTION_STATUS, appointmentTableHandler.getFromList(claimed.row(), PRESCRIPTION_STATUS)
+               );
+      }
+   
+      if (prescription.isDispensed()) {
+         System.out.println("Updated Appointment " + appointmentId + "'s prescription status");
+         viewAppointmentOutcomeRecord();
+      } else {
+         for (MedicationStockModifier medicine : prescribedMedicines) {
+            if (!medicine.getavalibility()) 
+               System.out.println(medicine.getmedicineName() + " not available");
+         }
+         System.out.println("Unable to dispense due to lack of medications");
       }
    }
 }
@@ -0,0 +1,269 @@
+package hms.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hms.exception.UndefinedVariableException;
+import hms.utility.CSVHandler;
+import hms.utility.Date;
+import hms.utility.TableHandler;
+
+/**
+ * An in-memory calendar of the doctor schedule, kept up to date as a
+ * {@link CSVHandler.RowListener} of the schedule table. For every day and every
+ * doctor with a schedule on that day, each of the {@link Date#ALL_TIMESLOTS} is
+ * a bit of a few bitmaps: whether the doctor has a schedule in the slot, and
+ * whether that schedule is open to booking.
+ * <br><br>
+ * Finding the doctors free on a day, or the next free slot of a doctor, is thus
+ * a matter of a few map lookups and bit operations, instead of a scan of the
+ * schedule table. A doctor is assumed to have at most one schedule per slot, as
+ * AppointmentManager never schedules over an existing one.
+ * <br><br>
+ * The calendar is filled from the table on the first lookup, so that a mapped
+ * schedule table is not decoded when it is opened. The table reports its changes
+ * under its write lock, while lookups come from any session; both synchronize on
+ * the calendar, but a lookup registers the calendar before it does, since the
+ * registration takes the write lock.
+ */
+class DoctorAvailability implements CSVHandler.RowListener {
+	/** Status of a schedule open to booking. */
+	static final String AVAILABLE = "Available";
+	/** Status of a schedule whose booking was cancelled, open to booking again. */
+	static final String CANCELLED = "Cancelled";
+
+	private final int scheduleIdIndex;
+	private final int doctorIdIndex;
+	private final int dayIndex;
+	private final int monthIndex;
+	private final int yearIndex;
+	private final int timeSlotIndex;
+	private final int statusIndex;
+	private final int maxIndex;
+	private final TableHandler scheduleTable;
+	private volatile boolean isRegistered;
+
+	// the same DaySchedule objects, by day then doctor, and by doctor then day
+	private final HashMap<Long, LinkedHashMap<String, DaySchedule>> schedulesByDay;
+	private final HashMap<String, TreeMap<Long, DaySchedule>> schedulesByDoctor;
+
+	/**
+	 * The schedule of a doctor on a day. Bit i of a bitmap stands for the i-th
+	 * slot of {@link Date#ALL_TIMESLOTS}.
+	 */
+	private static class DaySchedule {
+		private int scheduledSlots = 0;
+		private int availableSlots = 0;
+		private int cancelledSlots = 0;
+		private final String[] scheduleIds = new String[Date.ALL_TIMESLOTS.size()];
+	}
+
+	/**
+	 * Constructs the calendar of a schedule table, empty until its first lookup.
+	 *
+	 * @param scheduleTable the schedule table
+	 * @param scheduleId    the variable holding the schedule ids
+	 * @param doctorId      the variable holding the doctor ids
+	 * @param day           the variable holding the day of the month
+	 * @param month         the variable holding the name of the month
+	 * @param year          the variable holding the year
+	 * @param timeSlot      the variable holding the time slot
+	 * @param status        the variable holding the status of the schedule
+	 * @throws UndefinedVariableException if a variable is not in the table format.
+	 */
+	DoctorAvailability(TableHandler scheduleTable, String scheduleId, String doctorId, String day,
+			String month, String year, String timeSlot, String status) throws UndefinedVariableException {
+		this.scheduleIdIndex = scheduleTable.format.indexOf(scheduleId);
+		this.doctorIdIndex = scheduleTable.format.indexOf(doctorId);
+		this.dayIndex = scheduleTable.format.indexOf(day);
+		this.monthIndex = scheduleTable.format.indexOf(month);
+		this.yearIndex = scheduleTable.format.indexOf(year);
+		this.timeSlotIndex = scheduleTable.format.indexOf(timeSlot);
+		this.statusIndex = scheduleTable.format.indexOf(status);
+		this.maxIndex = Math.max(
+				Math.max(Math.max(scheduleIdIndex, doctorIdIndex), Math.max(dayIndex, monthIndex)),
+				Math.max(Math.max(yearIndex, timeSlotIndex), statusIndex)
+		);
+		this.schedulesByDay = new HashMap<Long, LinkedHashMap<String, DaySchedule>>();
+		this.schedulesByDoctor = new HashMap<String, TreeMap<Long, DaySchedule>>();
+		this.scheduleTable = scheduleTable;
+		this.isRegistered = false;
+	}
+
+	/**
+	 * Registers the calendar on the table, which fills it with the rows of the
+	 * table, unless it is already registered. Must not be called while holding
+	 * the calendar, or a read lock of the table.
+	 */
+	private void register() {
+		if (isRegistered) return;
+
+		// a lookup racing this one finds the calendar registered, and adds nothing
+		scheduleTable.addRowListener(this);
+		isRegistered = true;
+	}
+
+	@Override
+	public synchronized void rowChanged(List<String> oldRow, List<String> newRow) {
+		if (oldRow != null) this.update(oldRow, false);
+		if (newRow != null) this.update(newRow, true);
+	}
+
+	/**
+	 * Sets or clears the bits of a schedule row.
+	 */
+	private void update(List<String> row, boolean isAdded) {
+		if (row.size() <= maxIndex) return;
+
+		long epochDay;
+		int slot;
+		try {
+			epochDay = Date.toEpochDay(Date.pack(row.get(dayIndex), row.get(monthIndex), row.get(yearIndex), "00:00"));
+			slot = Date.parseTimeSlot(row.get(timeSlotIndex));
+		} catch (NumberFormatException e) {
+			// not a date the calendar can hold
+			return;
+		}
+		if (slot == -1) return;
+
+		String doctorId = row.get(doctorIdIndex);
+		int bit = 1 << slot;
+		if (isAdded) {
+			DaySchedule schedule = schedulesByDay
+					.computeIfAbsent(epochDay, d -> new LinkedHashMap<String, DaySchedule>())
+					.computeIfAbsent(doctorId, d -> new DaySchedule());
+			schedulesByDoctor.computeIfAbsent(doctorId, d -> new TreeMap<Long, DaySchedule>()).put(epochDay, schedule);
+
+			schedule.scheduledSlots |= bit;
+			if (row.get(statusIndex).equals(AVAILABLE)) schedule.availableSlots |= bit;
+			if (row.get(statusIndex).equals(CANCELLED)) schedule.cancelledSlots |= bit;
+			schedule.scheduleIds[slot] = row.get(scheduleIdIndex);
+			return;
+		}
+
+		DaySchedule schedule = this.getSchedule(epochDay, doctorId);
+		if (schedule == null || !row.get(scheduleIdIndex).equals(schedule.scheduleIds[slot])) return;
+
+		schedule.scheduledSlots &= ~bit;
+		schedule.availableSlots &= ~bit;
+		schedule.cancelledSlots &= ~bit;
+		schedule.scheduleIds[slot] = null;
+		if (schedule.scheduledSlots == 0) {
+			schedulesByDay.get(epochDay).remove(doctorId);
+			if (schedulesByDay.get(epochDay).isEmpty()) schedulesByDay.remove(epochDay);
+			schedulesByDoctor.get(doctorId).remove(epochDay);
+			if (schedulesByDoctor.get(doctorId).isEmpty()) schedulesByDoctor.remove(doctorId);
+		}
+	}
+
+	private DaySchedule getSchedule(long epochDay, String doctorId) {
+		Map<String, DaySchedule> schedules = schedulesByDay.get(epochDay);
+		return schedules == null ? null : schedules.get(doctorId);
+	}
+
+	private static int getFreeSlots(DaySchedule schedule, boolean includeCancelled) {
+		return schedule.availableSlots | (includeCancelled ? schedule.cancelledSlots : 0);
+	}
+
+	/**
+	 * Finds the schedule of a doctor in a slot, whatever its status.
+	 *
+	 * @param epochDay the day, see {@link Date#toEpochDay(long)}
+	 * @param doctorId the doctor
+	 * @param slot     the 0-based index of the slot in {@link Date#ALL_TIMESLOTS}
+	 * @return the schedule id; null if the doctor has no schedule in the slot.
+	 */
+	String findScheduleId(long epochDay, String doctorId, int slot) {
+		this.register();
+		synchronized (this) {
+			DaySchedule schedule = this.getSchedule(epochDay, doctorId);
+			return schedule == null ? null : schedule.scheduleIds[slot];
+		}
+	}
+
+	/**
+	 * Finds the doctors with at least one slot open to booking on a day.
+	 *
+	 * @param epochDay         the day, see {@link Date#toEpochDay(long)}
+	 * @param includeCancelled whether cancelled schedules count as open
+	 * @return the doctor ids, in the order their schedules on that day first appeared.
+	 */
+	List<String> findFreeDoctors(long epochDay, boolean includeCancelled) {
+		this.register();
+		synchronized (this) {
+			List<String> doctorIds = new ArrayList<String>();
+			Map<String, DaySchedule> schedules = schedulesByDay.get(epochDay);
+			if (schedules == null) return doctorIds;
+
+			schedules.forEach((doctorId, schedule) -> {
+				if (getFreeSlots(schedule, includeCancelled) != 0) doctorIds.add(doctorId);
+			});
+			return doctorIds;
+		}
+	}
+
+	/**
+	 * Finds the schedules open to booking on a day, across all doctors.
+	 *
+	 * @param epochDay         the day, see {@link Date#toEpochDay(long)}
+	 * @param includeCancelled whether cancelled schedules count as open
+	 * @return the schedule ids, by slot, then in the order the doctors' schedules on
+	 *         that day first appeared.
+	 */
+	List<String> findFreeScheduleIds(long epochDay, boolean includeCancelled) {
+		this.register();
+		synchronized (this) {
+			List<String> scheduleIds = new ArrayList<String>();
+			Map<String, DaySchedule> schedules = schedulesByDay.get(epochDay);
+			if (schedules == null) return scheduleIds;
+
+			int daySlots = 0;
+			for (DaySchedule schedule : schedules.values()) {
+				daySlots |= getFreeSlots(schedule, includeCancelled);
+			}
+			for (int slots = daySlots; slots != 0; slots &= slots - 1) {
+				int slot = Integer.numberOfTrailingZeros(slots);
+				for (DaySchedule schedule : schedules.values()) {
+					if ((getFreeSlots(schedule, includeCancelled) & (1 << slot)) != 0) {
+						scheduleIds.add(schedule.scheduleIds[slot]);
+					}
+				}
+			}
+			return scheduleIds;
+		}
+	}
+
+	/**
+	 * Finds the first slot of a doctor open to booking, at or after a time.
+	 *
+	 * @param doctorId         the doctor
+	 * @param fromEpochMinutes the earliest time, see {@link Date#pack(int, int, int, int)}
+	 * @param includeCancelled whether cancelled schedules count as open
+	 * @return the schedule id of the slot; null if the doctor has none.
+	 */
+	String findNextFreeScheduleId(String doctorId, long fromEpochMinutes, boolean includeCancelled) {
+		this.register();
+		synchronized (this) {
+			TreeMap<Long, DaySchedule> schedules = schedulesByDoctor.get(doctorId);
+			if (schedules == null) return null;
+
+			long fromDay = Date.toEpochDay(fromEpochMinutes);
+			for (Map.Entry<Long, DaySchedule> entry : schedules.tailMap(fromDay, true).entrySet()) {
+				int slots = getFreeSlots(entry.getValue(), includeCancelled);
+				if (entry.getKey() == fromDay) {
+					// only the slots starting at or after the time
+					int fromMinuteOfDay = Date.toMinuteOfDay(fromEpochMinutes);
+					for (int i = 0; i < Date.ALL_TIMESLOTS.size(); i++) {
+						if (Date.parseMinuteOfDay(Date.ALL_TIMESLOTS.get(i)) < fromMinuteOfDay) slots &= ~(1 << i);
+					}
+				}
+				if (slots != 0) return entry.getValue().scheduleIds[Integer.numberOfTrailingZeros(slots)];
+			}
+			return null;
+		}
+	}
+}
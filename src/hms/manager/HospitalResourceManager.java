@@ -1,6 +1,11 @@
 package hms.manager;
 
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import hms.exception.AccessDeniedException;
 import hms.exception.CommandStackViolationException;
@@ -17,6 +22,44 @@ import hms.exception.UndefinedCommandException;
  * associated with each command.</p>
  */
 public class HospitalResourceManager {
+   private static final Map<Class<? extends HospitalResourceManager>, CompletableFuture<Void>> pendingInits = 
+      new ConcurrentHashMap<Class<? extends HospitalResourceManager>, CompletableFuture<Void>>();
+
+   /**
+    * Runs the initialization of a manager in the background, so that its tables
+    * load while the system carries on. The manager must {@link #awaitInit(Class) await}
+    * its initialization before it touches its tables.
+    * <br><br>
+    * A failed initialization terminates the system, as it would have, had it
+    * been run in the foreground.
+    * 
+    * @param manager the class of the manager being initialized
+    * @param init the initialization procedure
+    */
+   public static void initInBackground(Class<? extends HospitalResourceManager> manager, Callable<?> init) {
+      pendingInits.put(manager, CompletableFuture.runAsync(
+         () -> {
+            try {
+               init.call();
+            } catch (Exception e) {
+               System.err.println("Hospital Management System Startup Failure.");
+               System.err.println("Reason: " + e.getMessage());
+               System.exit(1);
+            }
+         }));
+   }
+
+   /**
+    * Blocks until a manager started with {@link #initInBackground(Class, Callable)}
+    * is initialized. Returns at once if the manager was initialized in the foreground.
+    * 
+    * @param manager the class of the manager
+    */
+   protected static void awaitInit(Class<? extends HospitalResourceManager> manager) {
+      CompletableFuture<Void> pendingInit = pendingInits.get(manager);
+      if (pendingInit != null) pendingInit.join();
+   }
+
 	/**
 	 * This is a containment abstract class within HospitalResourceManager,
 	 * which covers all the general features a command object might need,
@@ -31,11 +74,7 @@ public class HospitalResourceManager {
       private String issuerId;
       private Object targetObject;
       protected String managerDescription;
-      /**
-       * The public Scanner object with which the manager classes
-       * can prompt for input without having to manage their own.
-       */
-      public static Scanner inputScanner;
+      private static Supplier<Scanner> inputScanner;
    	
       /**
        * Constructs a command object that represents a request to a 
@@ -52,15 +91,25 @@ public class HospitalResourceManager {
       }
    	
       /**
-       * Initializes a Scanner object for the service-providing
+       * Initializes the source of the Scanner objects for the service-providing
        * managers to use in prompting processes.
        * 
-       * @param in a reference to an opened Scanner. This scanner
-       * cannot be closed if commands are still to be invoked.
+       * @param in supplies the opened Scanner of the session of the calling thread. 
+       * These scanners cannot be closed if commands are still to be invoked.
        */
-      public static void CommandInit(Scanner in) {
+      public static void CommandInit(Supplier<Scanner> in) {
          inputScanner = in;
       }
+      
+      /**
+       * Gets the Scanner object with which the manager classes can prompt 
+       * for input without having to manage their own.
+       * 
+       * @return the Scanner of the session of the calling thread
+       */
+      public static Scanner getInputScanner() {
+         return inputScanner.get();
+      }
    	
       /**
        * Retrieves the name of the command action.
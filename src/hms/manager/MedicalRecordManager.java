@@ -4,10 +4,12 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hms.HospitalManagementSystem;
 import hms.exception.UndefinedVariableException;
 import hms.target.MedicalRecordModifier;
+import hms.utility.CSVHandler;
 import hms.utility.Date;
 import hms.utility.JointTableHandler;
 import hms.utility.PromptFormatter;
@@ -25,6 +27,7 @@ public class MedicalRecordManager extends HospitalResourceManager {
    private static WideTableHandler medicationTableHandler;
    private static WideTableHandler treatmentTableHandler;
    private static JointTableHandler medicalRecordTableHandler;
+   private static Map<String, RecordCache> recordCaches;
 
 	// Table Variable
    private static final String ID = "ID";
@@ -67,22 +70,6 @@ public class MedicalRecordManager extends HospitalResourceManager {
          this.isNewRecord = (recordIndex == -1);
       }
    
-   	/**
-   	 * Parses the entries read from the medical records table into a list of
-   	 * MedicalRecords.
-   	 * 
-   	 * @param entriesReadFromTable self-explanatory
-   	 * @return a list of MedicalRecords; this returned list will not contain empty
-   	 *         records (those that contains only date but no actual records)
-   	 */
-      public static List<MedicalRecord> constructMedicalRecordList(List<String> entriesReadFromTable) {
-         List<MedicalRecord> medicalRecords = new ArrayList<MedicalRecord>();
-      
-         entriesReadFromTable.forEach(e -> medicalRecords.add(new MedicalRecord(e)));
-      
-         return medicalRecords.stream().filter(r -> !r.isEmpty()).toList();
-      }
-   
       public MedicalRecord(String entryReadFromTable) {
     	 // Entry format item 1;item 2;...;item n;date;
          this.items = new ArrayList<String>(Arrays.asList(entryReadFromTable.split(";")));
@@ -178,6 +165,85 @@ public class MedicalRecordManager extends HospitalResourceManager {
       }
    }
 
+	/**
+	 * The parsed records of one patient for one variable. Shared between readers,
+	 * so the MedicalRecords inside are never modified.
+	 * 
+	 * @param inTableOrder every record of the entry, in the order of the table, so
+	 *                     that a position in it is a valueIndex of the row
+	 * @param byDate       the non-empty records only, sorted by date
+	 */
+   private record ParsedRecords(List<MedicalRecord> inTableOrder, List<MedicalRecord> byDate) {
+      private static ParsedRecords parse(List<String> entriesReadFromTable) {
+         List<MedicalRecord> inTableOrder = entriesReadFromTable.stream().map(MedicalRecord::new).toList();
+         return new ParsedRecords(
+            	inTableOrder,
+            	inTableOrder.stream().filter(r -> !r.isEmpty()).sorted().toList()
+            );
+      }
+   
+   	/**
+   	 * @param date the date of the record
+   	 * @return the valueIndex of the first record with the date, -1 if there is none
+   	 */
+      private int indexOfDate(Date date) {
+         for (int i = 0; i < this.inTableOrder.size(); i++) {
+            if (this.inTableOrder.get(i).date.equals(date)) return i;
+         }
+         return -1;
+      }
+   }
+
+	/**
+	 * Caches the parsed records of each patient in one of the medical records tables.
+	 * The records of a patient are parsed on first read, and dropped as soon as the
+	 * row they were parsed from changes, be it by addValue, removeValue or
+	 * overwriteValueInList. The change is seen under the write lock of the table, so
+	 * a read that raced with it is counted out through {@code invalidations} rather
+	 * than cached.
+	 */
+   private static class RecordCache implements CSVHandler.RowListener {
+      private final WideTableHandler tableHandler;
+      private final ConcurrentHashMap<String, ParsedRecords> recordsById;
+      private long invalidations;	// guarded by this
+   
+      private RecordCache(WideTableHandler tableHandler) {
+         this.tableHandler = tableHandler;
+         this.recordsById = new ConcurrentHashMap<String, ParsedRecords>();
+         this.invalidations = 0;
+      }
+   
+      @Override
+      public synchronized void rowChanged(List<String> oldRow, List<String> newRow) {
+         this.invalidations++;
+         if (oldRow != null) this.recordsById.remove(oldRow.getFirst());
+         if (newRow != null) this.recordsById.remove(newRow.getFirst());
+      }
+   
+   	/**
+   	 * @param hospitalId the patient's id
+   	 * @return the parsed records of the patient, empty if the patient has no row
+   	 */
+      private ParsedRecords get(String hospitalId) {
+         ParsedRecords records = this.recordsById.get(hospitalId);
+         if (records != null) return records;
+      
+         long seenInvalidations;
+         synchronized (this) {
+            seenInvalidations = this.invalidations;
+         }
+         List<String> row = this.tableHandler.isExistentId(hospitalId) ? 
+            	this.tableHandler.readRow(hospitalId) : 
+            	null;
+         records = ParsedRecords.parse(row == null ? List.of() : row.subList(1, row.size()));
+         synchronized (this) {
+         	// a change after the read may have been missed by the parsed copy
+            if (seenInvalidations == this.invalidations) this.recordsById.put(hospitalId, records);
+         }
+         return records;
+      }
+   }
+
    /**
     * Constructs the MedicalRecordManager and initializes table handlers.
     * This is a private constructor to enforce the singleton pattern.
@@ -193,6 +259,19 @@ public class MedicalRecordManager extends HospitalResourceManager {
    
       medicalRecordTableHandler = new JointTableHandler(
          	Arrays.asList(diagnosisTableHandler, medicationTableHandler, treatmentTableHandler));
+   	// Records are only ever appended to or edited in place, one value at a time.
+   	// Journal the changes rather than rewriting the whole history of all patients
+   	// on each of them; the files serve as the snapshot the journal is replayed onto
+      medicalRecordTableHandler.setPersistenceMode(CSVHandler.PersistenceMode.JOURNAL);
+   
+      recordCaches = Map.of(
+         	DIAGNOSES, new RecordCache(diagnosisTableHandler),
+         	MEDICATIONS, new RecordCache(medicationTableHandler),
+         	TREATMENTS, new RecordCache(treatmentTableHandler)
+         );
+      diagnosisTableHandler.addRowListener(recordCaches.get(DIAGNOSES));
+      medicationTableHandler.addRowListener(recordCaches.get(MEDICATIONS));
+      treatmentTableHandler.addRowListener(recordCaches.get(TREATMENTS));
    
       mrmInstance = this;
    }
@@ -219,6 +298,7 @@ public class MedicalRecordManager extends HospitalResourceManager {
       }
    
       public void invoke(String hospitalId) throws Exception {
+         awaitInit(MedicalRecordManager.class);
          super.setIssuerId(hospitalId);
          if (!RoleManager.checkIdHasPermission(hospitalId, super.getCommand()))
             super.rejectCommand();
@@ -260,21 +340,18 @@ public class MedicalRecordManager extends HospitalResourceManager {
       }
       
       PromptFormatter.printSeparation("Medical Record");
-      Map<String, List<String>> allMedicalRecords = medicalRecordTableHandler.readRow(hospitalId);
    
       medicalRecordTableHandler.getVariableNames().forEach(
          variableName -> {
             System.out.println(variableName + " : ");
          
-            List<MedicalRecord> specificMedicalRecords = MedicalRecord.constructMedicalRecordList(
-               allMedicalRecords.get(variableName)
-               );
+            List<MedicalRecord> specificMedicalRecords = recordCaches.get(variableName).get(hospitalId).byDate();
          
             if (specificMedicalRecords.isEmpty()) {
                System.out.println("	<No Records Found>");
                return;
             }
-            specificMedicalRecords.stream().sorted().forEachOrdered(r -> r.display());
+            specificMedicalRecords.forEach(r -> r.display());
          });
    	
       PromptFormatter.printSeparation("");
@@ -328,13 +405,8 @@ public class MedicalRecordManager extends HospitalResourceManager {
          medicalRecordTableHandler.addRow(ownerId);
       }
    
-   	// retrieve index of required entry, may be -1
-      int targetRecordIndex = medicalRecordTableHandler.findIndexOfValue(
-         	ownerId, 
-         	variableName,
-         	// find entry by date (first occurrence)
-         	e -> new MedicalRecord(e).date.equals(recordDate)
-         );
+   	// retrieve index of required entry by date (first occurrence), may be -1
+      int targetRecordIndex = recordCaches.get(variableName).get(ownerId).indexOfDate(recordDate);
    
    	// if targetRecordIndex is -1, this will create an empty record initialized with only recordDate
       MedicalRecord targetRecord = new MedicalRecord(
@@ -1,8 +1,16 @@
 package hms.manager;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.lang.model.type.NullType;
 
@@ -11,10 +19,11 @@ import hms.exception.TableMismatchException;
 import hms.exception.UndefinedVariableException;
 import hms.exception.UserNotFoundException;
 import hms.target.MedicationStockModifier;
+import hms.target.PrescriptionBatch;
+import hms.utility.CSVHandler;
 import hms.utility.PromptFormatter;
 import hms.utility.PromptFormatter.InputSession;
 import hms.utility.TableHandler;
-import hms.utility.TableHandler.TableQuery;
 
 /**
  * Manages the medication stock in the hospital management system. Provides functionalities to view,
@@ -23,8 +32,24 @@ import hms.utility.TableHandler.TableQuery;
 public class MedicationStockManager extends HospitalResourceManager {
    private static MedicationStockManager msmInstance = null;
    private static TableHandler medicineTableHandler;
+	// The stock level of each medicine, by medicine name. These counters are the
+	// authority on stock levels; the table follows them, see persistStockLevel(String)
+   private static final ConcurrentHashMap<String, AtomicInteger> stockLevels = new ConcurrentHashMap<String, AtomicInteger>();
+	// the medicines whose stock level has changed since it was last written to the table
+   private static final Set<String> unsavedStockLevels = ConcurrentHashMap.newKeySet();
+	// the stock level at or below which each medicine is due for replenishment, by medicine name
+   private static final ConcurrentHashMap<String, Integer> lowStockAlertLevels = new ConcurrentHashMap<String, Integer>();
+	// The medicines with a pending replenishment request, in the order the requests
+	// were made. Guarded by itself, together with the requests in the table
+   private static final LinkedHashSet<String> pendingReplenishments = new LinkedHashSet<String>();
+   private static final ExecutorService stockLevelWriter = Executors.newSingleThreadExecutor(
+      	task -> Thread.ofPlatform().name("stock-level-writer").daemon().unstarted(task)
+      );
 
    private static final int AUTO_REPLENISHMENT_QUANTITY = 100;
+   private static final int DEFAULT_LOW_STOCK_LEVEL_ALERT = 20;
+	// returned by tryDeductStock(String, int) when nothing was deducted
+   private static final int NOT_DEDUCTED = Integer.MIN_VALUE;
 	// Table Variable
    private static final String MEDICINE_NAME = "Medicine Name";
    private static final String INITIAL_STOCK = "Initial Stock";
@@ -40,6 +65,23 @@ public class MedicationStockManager extends HospitalResourceManager {
    private MedicationStockManager() throws Exception {
       medicineTableHandler = new TableHandler("./res/medicineList.csv",
          	Arrays.asList(MEDICINE_NAME, INITIAL_STOCK, LOW_STOCK_LEVEL_ALERT, REPLENISHMENT_REQUEST), 0);
+   	// stock levels are written behind the counters, so each write should be cheap
+      medicineTableHandler.setPersistenceMode(CSVHandler.PersistenceMode.JOURNAL);
+   
+      List<List<String>> medicineTable = medicineTableHandler.getData();
+      for (List<String> row : medicineTable.subList(1, medicineTable.size())) {
+         String medicineName = medicineTableHandler.getFromList(row, MEDICINE_NAME);
+         stockLevels.put(
+            	medicineName, new AtomicInteger(Integer.parseInt(medicineTableHandler.getFromList(row, INITIAL_STOCK)))
+            );
+         lowStockAlertLevels.put(
+            	medicineName, Integer.parseInt(medicineTableHandler.getFromList(row, LOW_STOCK_LEVEL_ALERT))
+            );
+         if (medicineTableHandler.getFromList(row, REPLENISHMENT_REQUEST).equals("Pending")) 
+            pendingReplenishments.add(medicineName);
+      }
+   	// the writes still queued when the system shuts down are made there and then
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> saveStockLevels(List.copyOf(unsavedStockLevels))));
    
       msmInstance = this;
    }
@@ -70,6 +112,7 @@ public class MedicationStockManager extends HospitalResourceManager {
       }
    
       public void invoke(String hospitalId) throws Exception {
+         awaitInit(MedicationStockManager.class);
          super.setIssuerId(hospitalId);
          if (!RoleManager.checkIdHasPermission(hospitalId, super.getCommand()))
             super.rejectCommand();
@@ -97,6 +140,14 @@ public class MedicationStockManager extends HospitalResourceManager {
                updateStockValue();
             }
          
+            case "CHECK_PRESCRIPTION" -> {
+               verifyPrescriptionAvailable();
+            }
+         
+            case "DISPENSE_PRESCRIPTION" -> {
+               dispensePrescription();
+            }
+         
             case "REVIEW_REPLENISHMENT_REQUEST" -> {
                promptReviewReplenishmentRequest();
             }
@@ -109,11 +160,21 @@ public class MedicationStockManager extends HospitalResourceManager {
    /**
     * Displays the current list of medicines and their stock details.
     */
-   private static void viewMedicineList() { // argument is the doctor's id
+   private static void viewMedicineList() throws UndefinedVariableException { // argument is the doctor's id
    
       PromptFormatter.printSeparation("Medication List");
    
-      List<List<String>> medicineTable = medicineTableHandler.getData();
+      int nameColIndex = medicineTableHandler.format.indexOf(MEDICINE_NAME);
+      int stockColIndex = medicineTableHandler.format.indexOf(INITIAL_STOCK);
+      List<List<String>> medicineTable = new ArrayList<List<String>>(medicineTableHandler.getData());
+   	// the stock levels are read from the counters, which the table may lag behind
+      for (int i = 1; i < medicineTable.size(); i++) {
+         List<String> row = new ArrayList<String>(medicineTable.get(i));
+         AtomicInteger stockLevel = findStockLevel(row.get(nameColIndex));
+         if (stockLevel != null) 
+            row.set(stockColIndex, String.valueOf(stockLevel.get()));
+         medicineTable.set(i, row);
+      }
       PromptFormatter.printTable(medicineTable, medicineTableHandler.format.getVariableNames());
       PromptFormatter.printSeparation("");
    
@@ -126,19 +187,10 @@ public class MedicationStockManager extends HospitalResourceManager {
     * @return true if the medicine exists, false otherwise
     */
    private static boolean isExistentMedicine(String medicinId) {
+      awaitInit(MedicationStockManager.class);
       return medicineTableHandler.isExistentId(medicinId);
    }
 	
-   private static String localGetFromListNoThrow(List<String> row, String variableName) {
-      try {
-         return medicineTableHandler.getFromList(row, variableName);
-      } catch (Exception e) { 
-         System.out.println(row + variableName);
-      }
-   	
-      return null;
-   }
-	
    /**
     * Prompts for the addition of a new medicine to the inventory.
     * 
@@ -163,7 +215,11 @@ public class MedicationStockManager extends HospitalResourceManager {
       if (initialStockLevel == null) 
          return;
    	
-      medicineTableHandler.addRow(Arrays.asList(medicineName, initialStockLevel, "20", "Fulfilled"));
+      medicineTableHandler.addRow(Arrays.asList(
+         	medicineName, initialStockLevel, String.valueOf(DEFAULT_LOW_STOCK_LEVEL_ALERT), "Fulfilled"
+         ));
+      lowStockAlertLevels.put(medicineName, DEFAULT_LOW_STOCK_LEVEL_ALERT);
+      stockLevels.put(medicineName, new AtomicInteger(Integer.parseInt(initialStockLevel)));
    }
 	
    /**
@@ -211,6 +267,11 @@ public class MedicationStockManager extends HospitalResourceManager {
       PromptFormatter.printSeparation("");
    	
       if (decision.equals("Remove Medicine")) {
+         stockLevels.remove(medicineName);
+         lowStockAlertLevels.remove(medicineName);
+         synchronized (pendingReplenishments) {
+            pendingReplenishments.remove(medicineName);
+         }
          medicineTableHandler.removeRow(medicineName);
          System.out.println("Removed " + medicineName);
          return;
@@ -222,31 +283,39 @@ public class MedicationStockManager extends HospitalResourceManager {
       if (newStockLevel == null) 
          return;
    	
-      medicineTableHandler.updateVariable(medicineName, INITIAL_STOCK, newStockLevel);
+      AtomicInteger stockLevel = stockLevels.get(medicineName);
+      if (stockLevel == null) {
+         System.out.println("Medicine not found!");
+         return;
+      }
+      int previousLevel = stockLevel.getAndSet(Integer.parseInt(newStockLevel));
+      persistStockLevel(medicineName);
+      checkLowStockLevel(medicineName, previousLevel, Integer.parseInt(newStockLevel));
    	
       System.out.println("Updated stock level of " + medicineName + " to " + newStockLevel);
    }
 	
    /**
     * Prompts the user to review pending replenishment requests for medicines.
-    * The user can approve or reject replenishment requests.
+    * The user can approve or reject replenishment requests. The requests are read
+    * from the queue of pending replenishments, in the order they were made.
     * 
     * @throws Exception if there is an error during the replenishment review process
     */
    private static void promptReviewReplenishmentRequest() throws Exception {
-      List<List<String>> pendingReplenishment = medicineTableHandler.new TableQuery(medicineTableHandler.ALL_COLUMNS)
-         .where(REPLENISHMENT_REQUEST)
-         .matches("Pending")
-         .yield();
+      List<String> pendingMedicines;
+      synchronized (pendingReplenishments) {
+         pendingMedicines = List.copyOf(pendingReplenishments);
+      }
    	
-      if (TableQuery.isEmptyResult(pendingReplenishment)) {
+      if (pendingMedicines.isEmpty()) {
          System.out.println("<No pending replenishment requests>");
          return;
       }
    	
       PromptFormatter.Poll selectRequest = new PromptFormatter.Poll(
-         	pendingReplenishment.stream().map(l -> localGetFromListNoThrow(l, MEDICINE_NAME)).toList(), 
-         	pendingReplenishment.stream().map(l -> "Current stock level: " + localGetFromListNoThrow(l, INITIAL_STOCK)).toList(), 
+         	pendingMedicines, 
+         	pendingMedicines.stream().map(m -> "Current stock level: " + stockLevels.getOrDefault(m, new AtomicInteger()).get()).toList(), 
          	"Select Replenishment Request"
          );
    	
@@ -262,13 +331,19 @@ public class MedicationStockManager extends HospitalResourceManager {
       String medicineName = answers.get(0);
       String decision = answers.get(1);
    	
-      if (decision.equals("Approve")) {
-         int currentStock = Integer.parseInt(medicineTableHandler.readVariable(medicineName, INITIAL_STOCK));
-         medicineTableHandler.updateVariable(medicineName, INITIAL_STOCK, String.valueOf(currentStock + AUTO_REPLENISHMENT_QUANTITY));
+      synchronized (pendingReplenishments) {
+         if (!pendingReplenishments.remove(medicineName)) {
+            System.out.println("This replenishment request has already been reviewed.");
+            return;
+         }
+      
+         if (decision.equals("Approve")) {
+            stockLevels.get(medicineName).addAndGet(AUTO_REPLENISHMENT_QUANTITY);
+            persistStockLevel(medicineName);
+         }
+         medicineTableHandler.updateVariable(medicineName, REPLENISHMENT_REQUEST, decision.equals("Approve") ? "Fulfilled" : "Rejected");
       }
    	
-      medicineTableHandler.updateVariable(medicineName, REPLENISHMENT_REQUEST, decision.equals("Approve") ? "Fulfilled" : "Rejected");
-   	
       System.out.println("Replenishment request " + decision + "d.");
    }
 	
@@ -290,7 +365,7 @@ public class MedicationStockManager extends HospitalResourceManager {
       if (medicineId == null){
          return;
       }
-      medicineTableHandler.updateVariable(medicineId, REPLENISHMENT_REQUEST, "Pending");
+      requestReplenishment(medicineId);
       System.out.println(medicineId + "'s replenishment has been requested.");
       viewMedicineList();
    }
@@ -303,32 +378,227 @@ public class MedicationStockManager extends HospitalResourceManager {
       MedicationStockModifier targetObject = HospitalManagementSystem
          	.getParentTargetAs(MedicationStockModifier.class);
    	
-      String medicine = targetObject.getmedicineName();
-      if (isExistentMedicine(medicine)) {
-         if (Integer.parseInt(medicineTableHandler.readVariable(medicine, INITIAL_STOCK)) > targetObject
-         		.getdeductionAmount()) {
-            targetObject.setavalibility(true);
-         } else {
-            targetObject.setavalibility(false);
-         }
-      } else {
-         targetObject.setavalibility(false);
-      }
+      AtomicInteger stockLevel = findStockLevel(targetObject.getmedicineName());
+      targetObject.setavalibility(stockLevel != null && stockLevel.get() > targetObject.getdeductionAmount());
    }
 
    /**
-    * Updates the stock value of a specified medicine in the inventory.
+    * Deducts the amount to dispense from the stock of a specified medicine, provided
+    * more than that amount is in stock. The check and the deduction are one atomic
+    * step, so that sessions dispensing the same medicine at once can never take
+    * more than is in stock. The availability of the target tells whether the
+    * deduction was made.
     * 
-    * @throws IOException if an input/output error occurs
+    * @throws Exception if the target is not a MedicationStockModifier
     */
    private static void updateStockValue() throws Exception {
       MedicationStockModifier targetObject = HospitalManagementSystem.getParentTargetAs(
          MedicationStockModifier.class
          );
       String medicine = targetObject.getmedicineName();
-      int initialStock = Integer.parseInt(medicineTableHandler.readVariable(medicine, INITIAL_STOCK));
       int deductionQty = targetObject.getdeductionAmount();
-      String newStock = String.valueOf(initialStock-deductionQty);
-      medicineTableHandler.updateVariable(medicine,INITIAL_STOCK,newStock);
+      int previousLevel = tryDeductStock(medicine, deductionQty);
+      targetObject.setavalibility(previousLevel != NOT_DEDUCTED);
+      if (previousLevel == NOT_DEDUCTED) 
+         return;
+   
+      persistStockLevel(medicine);
+      checkLowStockLevel(medicine, previousLevel, previousLevel - deductionQty);
+   }
+
+   /**
+    * Checks, in a single pass, whether each medicine of a prescription is in stock.
+    * The availability of each medicine of the target is set accordingly.
+    * 
+    * @throws Exception if the target is not a PrescriptionBatch
+    */
+   private static void verifyPrescriptionAvailable() throws Exception {
+      markAvailability(HospitalManagementSystem.getParentTargetAs(PrescriptionBatch.class));
+   }
+
+   /**
+    * Sets the availability of each medicine of a prescription, as of now.
+    * 
+    * @param prescription the prescription
+    */
+   private static void markAvailability(PrescriptionBatch prescription) {
+      for (MedicationStockModifier medicine : prescription.getMedicines()) {
+         AtomicInteger stockLevel = findStockLevel(medicine.getmedicineName());
+         medicine.setavalibility(stockLevel != null && stockLevel.get() > medicine.getdeductionAmount());
+      }
+   }
+
+   /**
+    * Dispenses all medicines of a prescription, or none of them.
+    * <p>
+    * The amount of each medicine is reserved in turn, by the same atomic check and
+    * deduction as {@link #updateStockValue()}. Should any medicine fall short, the
+    * reservations made so far are given back, and nothing is dispensed. Otherwise
+    * the new stock levels are written to the table as a single batch.
+    * </p>
+    * The target is marked dispensed or not. If it is not, the availability of each
+    * of its medicines is set as {@code CHECK_PRESCRIPTION} would, to tell which ones
+    * fell short.
+    * 
+    * @throws Exception if the target is not a PrescriptionBatch
+    */
+   private static void dispensePrescription() throws Exception {
+      PrescriptionBatch prescription = HospitalManagementSystem.getParentTargetAs(PrescriptionBatch.class);
+      prescription.setDispensed(false);
+   
+      List<MedicationStockModifier> reserved = new ArrayList<MedicationStockModifier>();
+      List<Integer> previousLevels = new ArrayList<Integer>();
+      for (MedicationStockModifier medicine : prescription.getMedicines()) {
+         int previousLevel = tryDeductStock(medicine.getmedicineName(), medicine.getdeductionAmount());
+         if (previousLevel == NOT_DEDUCTED) {
+            for (MedicationStockModifier reservedMedicine : reserved) {
+               AtomicInteger stockLevel = stockLevels.get(reservedMedicine.getmedicineName());
+               if (stockLevel != null) 
+                  stockLevel.addAndGet(reservedMedicine.getdeductionAmount());
+            }
+            markAvailability(prescription);
+            return;
+         }
+         reserved.add(medicine);
+         previousLevels.add(previousLevel);
+      }
+   
+      prescription.getMedicines().forEach(medicine -> medicine.setavalibility(true));
+      prescription.setDispensed(true);
+      persistStockLevels(reserved.stream().map(MedicationStockModifier::getmedicineName).toList());
+      for (int i = 0; i < reserved.size(); i++) {
+         checkLowStockLevel(
+            	reserved.get(i).getmedicineName(),
+            	previousLevels.get(i),
+            	previousLevels.get(i) - reserved.get(i).getdeductionAmount()
+            );
+      }
+   }
+
+   /**
+    * Finds the stock counter of a medicine.
+    * 
+    * @param medicine the name of the medicine, which may be null
+    * @return the counter; null if there is no such medicine, or no name was given.
+    */
+   private static AtomicInteger findStockLevel(String medicine) {
+   	// the counters are in a ConcurrentHashMap, which throws on a null key
+      return medicine == null ? null : stockLevels.get(medicine);
+   }
+
+   /**
+    * Deducts an amount from the stock of a medicine, provided more than that amount
+    * is in stock, as one atomic step. The change is not persisted.
+    * 
+    * @param medicine the name of the medicine
+    * @param amount the amount to deduct
+    * @return the stock level before the deduction; NOT_DEDUCTED if the medicine does
+    *         not exist, or has no more than the amount in stock.
+    */
+   private static int tryDeductStock(String medicine, int amount) {
+      AtomicInteger stockLevel = findStockLevel(medicine);
+      if (stockLevel == null) 
+         return NOT_DEDUCTED;
+   
+      int currentStock;
+      do {
+         currentStock = stockLevel.get();
+         if (currentStock <= amount) 
+            return NOT_DEDUCTED;
+      } while (!stockLevel.compareAndSet(currentStock, currentStock - amount));
+      return currentStock;
+   }
+
+   /**
+    * Requests the replenishment of a medicine, if a change of its stock level took it
+    * from above its low stock level alert to at or below it. This takes O(1), and as
+    * every change of a stock level is made in one atomic step, exactly one change
+    * crosses the alert level each time it is crossed.
+    * 
+    * @param medicine the name of the medicine
+    * @param previousLevel the stock level before the change
+    * @param newLevel the stock level after the change
+    * @throws IOException if the request cannot be written to the table
+    */
+   private static void checkLowStockLevel(String medicine, int previousLevel, int newLevel)
+   		throws IOException, UndefinedVariableException, UserNotFoundException {
+      Integer alertLevel = lowStockAlertLevels.get(medicine);
+      if (alertLevel != null && previousLevel > alertLevel && newLevel <= alertLevel) {
+         requestReplenishment(medicine);
+      }
+   }
+
+   /**
+    * Queues a replenishment request for a medicine and marks it pending in the
+    * table, unless one is pending already.
+    * 
+    * @param medicine the name of the medicine
+    * @throws IOException if the request cannot be written to the table
+    */
+   private static void requestReplenishment(String medicine)
+   		throws IOException, UndefinedVariableException, UserNotFoundException {
+      synchronized (pendingReplenishments) {
+         if (pendingReplenishments.add(medicine)) {
+            medicineTableHandler.updateVariable(medicine, REPLENISHMENT_REQUEST, "Pending");
+         }
+      }
+   }
+
+   /**
+    * Schedules the write of the stock level of a medicine to the table, in the
+    * background. Levels changing faster than they are written are written once,
+    * with the latest level.
+    * 
+    * @param medicine the name of the medicine whose stock level changed
+    */
+   private static void persistStockLevel(String medicine) {
+      persistStockLevels(List.of(medicine));
+   }
+
+   /**
+    * Schedules the write of the stock levels of several medicines to the table, in
+    * the background, as a single batch.
+    * 
+    * @param medicines the names of the medicines whose stock levels changed
+    */
+   private static void persistStockLevels(Collection<String> medicines) {
+   	// a write is already queued for the others, and will pick up their levels
+      List<String> newlyUnsaved = medicines.stream().distinct().filter(unsavedStockLevels::add).toList();
+      if (!newlyUnsaved.isEmpty()) {
+         stockLevelWriter.execute(() -> saveStockLevels(newlyUnsaved));
+      }
+   }
+
+   /**
+    * Writes the current stock levels of some medicines to the table, as a single batch.
+    * 
+    * @param medicines the names of the medicines
+    */
+   private static void saveStockLevels(Collection<String> medicines) {
+      medicineTableHandler.beginBatch();
+      try {
+         for (String medicine : medicines) {
+         	// cleared first, so that a change made from here on queues another write
+            if (!unsavedStockLevels.remove(medicine)) 
+               continue;
+            AtomicInteger stockLevel = stockLevels.get(medicine);
+            if (stockLevel == null) 
+               continue;
+         
+            try {
+               medicineTableHandler.updateVariable(medicine, INITIAL_STOCK, String.valueOf(stockLevel.get()));
+            } catch (UserNotFoundException e) {
+            	// removed from the table in the meantime
+            }
+         }
+      } catch (Exception e) {
+         System.err.println("Unable to save the stock levels of " + medicines + ": " + e.getMessage());
+      } finally {
+         try {
+            medicineTableHandler.commitBatch();
+         } catch (IOException e) {
+            System.err.println("Unable to save the stock levels of " + medicines + ": " + e.getMessage());
+         }
+      }
    }
 }
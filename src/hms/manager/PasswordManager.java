@@ -43,8 +43,12 @@ public class PasswordManager extends HospitalResourceManager {
       passwordTableHandler = new TableHandler(
          	"./res/passwords.csv", 
          	Arrays.asList(ID, PASSWORD, ISNEW),
-         	0
+         	0,
+         	// the hashes are read as they are in the file
+         	CSVHandler.NO_STRIP
          );
+      // losing this table locks everyone out
+      passwordTableHandler.setDurability(CSVHandler.Durability.FSYNC);
    }
 	
     /**
@@ -222,7 +226,7 @@ public class PasswordManager extends HospitalResourceManager {
             System.out.print("\nPlease enter new Password\t: ");
          	
          	// this scanner used is initialized upon startup and inherited into this subclass
-            String newPassword = Command.inputScanner.nextLine();
+            String newPassword = Command.getInputScanner().nextLine();
             String hashedPassword = Cryptography.hash(newPassword);
          	
             if (passwordTableHandler.readVariable(hospitalId, PASSWORD).equals(hashedPassword)) {
@@ -231,7 +235,7 @@ public class PasswordManager extends HospitalResourceManager {
             }
          	
             System.out.print("Please confirm password\t\t: ");
-            if (!newPassword.equals(Command.inputScanner.nextLine())) {
+            if (!newPassword.equals(Command.getInputScanner().nextLine())) {
                System.out.println("\nPasswords do not match. Please try again.");
                continue;
             }
@@ -3,8 +3,12 @@ package hms.manager;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hms.HospitalManagementSystem;
 import hms.exception.AccessDeniedException;
@@ -15,6 +19,7 @@ import hms.exception.UndefinedVariableException;
 import hms.exception.UserNotFoundException;
 import hms.target.NewUserInfo;
 import hms.utility.Action;
+import hms.utility.CSVHandler;
 import hms.utility.PromptFormatter;
 import hms.utility.TableHandler;
 
@@ -26,8 +31,8 @@ import hms.utility.TableHandler;
  */
 public class RoleManager {
 	// Components of Role objects
-	//			roleName : allowedActions
-   private static Map<String, List<Action>> roleTable;
+	//			roleName : allowedActions, compiled; swapped as a whole on reload
+   private static volatile PermissionTable permissionTable;
 	//			Id : Role
    private static Map<String, Role> userRoles;
 	
@@ -56,26 +61,21 @@ public class RoleManager {
          	Arrays.asList(ID, ROLE),
          	0
          );
+      userRoleTableHandler.setDurability(CSVHandler.Durability.FSYNC);
       permissionTableHandler = new TableHandler(
          	"./res/permissions.csv",
          	Arrays.asList(ROLE, PERMISSIONS),
          	0
          );
    	
-      roleTable = permissionTableHandler.readTwoColumns(
-         	ROLE, 
-         	PERMISSIONS, 
-         	s -> Arrays.asList(s.split(";"))
-         			.stream()
-         			.map(a -> new Action(a))
-         			.toList()
-         );
+      permissionTable = PermissionTable.compile(permissionTableHandler);
    	
-      userRoles = userRoleTableHandler.readTwoColumns(
+      // assigned to by the sessions of administrators, read by all
+      userRoles = new ConcurrentHashMap<String, Role>(userRoleTableHandler.readTwoColumns(
          	ID, 
          	ROLE, 
          	s -> new Role(s)
-         );
+         ));
       
       appointableRoles = Arrays.asList(new Role("Doctor"));
    }
@@ -107,21 +107,96 @@ public class RoleManager {
    }
 	
    /**
-    * The Role class represents a role in the system. It contains the role name and the list of actions allowed for that role.
+    * Reloads ./res/permissions.csv and swaps in the newly compiled permissions at once,
+    * so that a concurrent permission check sees either the old or the new permissions,
+    * never a mix of both.
+    * 
+    * @throws IOException if there is an error reading the permission file
+    * @throws UndefinedVariableException if the permission file lacks a column
+    */
+   private static synchronized void reloadPermissions() throws IOException, UndefinedVariableException {
+      TableHandler reloadedTableHandler = new TableHandler(
+         	"./res/permissions.csv",
+         	Arrays.asList(ROLE, PERMISSIONS),
+         	0
+         );
+      PermissionTable reloadedTable = PermissionTable.compile(reloadedTableHandler);
+   	
+      permissionTableHandler = reloadedTableHandler;
+      permissionTable = reloadedTable;
+   }
+	
+   /**
+    * The allowed actions of every role, compiled from ./res/permissions.csv into one
+    * bitset per role, indexed by {@link Action#idOf(String) action id}. The actions of
+    * CommonAccess are folded into the bitset of every role, so that a permission check
+    * is a single bit test. Never modified once compiled.
+    */
+   private static final class PermissionTable {
+      private final Map<String, BitSet> allowedActions;
+      private final BitSet commonActions;
+   	
+      private PermissionTable(Map<String, BitSet> allowedActions, BitSet commonActions) {
+         this.allowedActions = allowedActions;
+         this.commonActions = commonActions;
+      }
+   	
+      /**
+       * Compiles the permissions held in a permission table.
+       * @param tableHandler the permission table, with a ROLE and a PERMISSIONS column
+       * @return the compiled permissions
+       * @throws UndefinedVariableException if the table lacks a column
+       */
+      private static PermissionTable compile(TableHandler tableHandler) throws UndefinedVariableException {
+         HashMap<String, BitSet> allowedActions = tableHandler.readTwoColumns(
+            	ROLE, 
+            	PERMISSIONS, 
+            	s -> {
+            	   BitSet actions = new BitSet();
+            	   Arrays.stream(s.split(";")).forEach(a -> actions.set(Action.idOf(a)));
+            	   return actions;
+            	}
+            );
+      	
+         BitSet commonActions = allowedActions.getOrDefault(COMMON_ACCESS, new BitSet());
+         allowedActions.values().forEach(actions -> actions.or(commonActions));
+         return new PermissionTable(allowedActions, commonActions);
+      }
+   	
+      private boolean hasRole(String role) {
+         return this.allowedActions.containsKey(role);
+      }
+   	
+      private Set<String> getRoleNames() {
+         return this.allowedActions.keySet();
+      }
+   	
+      /**
+       * @param role the name of the role; an undefined role is only allowed the common actions
+       * @param actionId the id of the action
+       * @return true if the role is allowed to perform the action; false otherwise
+       */
+      private boolean isAllowed(String role, int actionId) {
+         BitSet actions = this.allowedActions.get(role);
+         return (actions == null ? this.commonActions : actions).get(actionId);
+      }
+   }
+	
+   /**
+    * The Role class represents a role in the system. It contains the role name, against
+    * which the allowed actions are looked up.
     */
    private static class Role {
       private final String role;
-      private List<Action> allowedActions;
       
    	/**
    	 * Constructs a Role object that provide role-specific permissions verification.
    	 * @param role the name of the role as a String. Possible values of which can
    	 * be referred to from ./res/permissions.csv. If a undefined role name is supplied,
-   	 * this.allowedActions will be null.
+   	 * {@link #wasValidAssignment()} will be false.
    	 */
       public Role(String role) {
          this.role = role;
-         this.allowedActions = roleTable.get(role);
       }
    	
       /**
@@ -134,23 +209,11 @@ public class RoleManager {
       
       /**
        * Checks whether the role assignment (the calling of Role constructor)
-       * resulted in a valid Role object, in which this.allowedAction points
-       * to a valid list permissions.
+       * resulted in a valid Role object, i.e., one with a set of permissions.
        * @return true if the assignment was valid; false otherwise
        */
       private boolean wasValidAssignment() {
-    	  return this.allowedActions != null;
-      }
-   	
-      /**
-       * Performs permission verification on the supplied action.
-       * @param action the action to which the role-holder's eligibility is 
-       * to be checked against.
-       * @return true if the role-holder is allowed to perform said action;
-       * false otherwise.
-       */
-      private boolean isAllowed(Action action) {
-         return this.allowedActions.contains(action);
+    	  return permissionTable.hasRole(this.role);
       }
    	
       @Override
@@ -170,7 +233,7 @@ public class RoleManager {
 	 * @return
 	 */
    public static boolean isValidRole(String role) {
-      return roleTable.containsKey(role);
+      return permissionTable.hasRole(role);
    }
    
    
@@ -202,12 +265,13 @@ public class RoleManager {
     * @return true if the user has permission, false otherwise
     */
    public static boolean checkIdHasPermission(String hospitalId, String action) {
+   	// No role was ever granted an action that was never interned
+      int actionId = Action.lookupId(action);
+      if (actionId == -1) 
+         return false;
    	
-   	// He's is not gonna do much harm with this action anyways
-      if (roleTable.get(COMMON_ACCESS).contains(new Action(action))) 
-         return true;
-   	
-      return userRoles.get(hospitalId).isAllowed(new Action(action));
+   	// CommonAccess is folded into every role: he's is not gonna do much harm with those anyways
+      return permissionTable.isAllowed(userRoles.get(hospitalId).getName(), actionId);
    }
 	
    /**
@@ -246,6 +310,11 @@ public class RoleManager {
             case "WRITE_ROLE" -> {
             	promptUpdateRole(hospitalId);
             }
+            
+            case "RELOAD_PERMISSIONS" -> {
+               reloadPermissions();
+               System.out.println("Permissions reloaded from ./res/permissions.csv.");
+            }
          
             default -> super.reportUndefinedCommand();
          }
@@ -266,7 +335,7 @@ public class RoleManager {
 	   Role newRole = new PromptFormatter.InputSession<Role>("Please Enter new Role")
 	   .setConverter(s -> new Role(s))
 	   .setValidator(r -> r.wasValidAssignment())
-	   .setOnInvalidInput("Not a valid role. Please choose from\n" + String.join(" ", roleTable.keySet()))
+	   .setOnInvalidInput("Not a valid role. Please choose from\n" + String.join(" ", permissionTable.getRoleNames()))
 	   .startPrompt();
 	   
 	   if (newRole == null) return;
@@ -319,12 +388,12 @@ public class RoleManager {
       	 
          System.out.println(roleName + " is not a valid role. Please choose from:");
       
-         for (String validName: roleTable.keySet()) {
+         for (String validName: permissionTable.getRoleNames()) {
             System.out.print(validName + " ");
          }
          System.out.println();
          System.out.print("Role	: ");
-         roleName = Command.inputScanner.nextLine();
+         roleName = Command.getInputScanner().nextLine();
       }
    }
 }
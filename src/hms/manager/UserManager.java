@@ -5,6 +5,7 @@ import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import hms.HospitalManagementSystem;
@@ -21,6 +22,7 @@ import hms.user.Doctor;
 import hms.user.Patient;
 import hms.user.Pharmacist;
 import hms.user.User;
+import hms.utility.CSVHandler;
 import hms.utility.PromptFormatter;
 import hms.utility.TableHandler;
 import hms.utility.TableHandler.TableQuery;
@@ -34,6 +36,10 @@ import hms.utility.TableHandler.TableQuery;
 public class UserManager extends HospitalResourceManager {
 	private static UserManager umInstance = null;
 	private static TableHandler userTableHandler;
+	// An immutable copy of every profile in the user table, by hospitalId. Kept in
+	// step with the table by a listener on it, so every change made to the table,
+	// by whichever command, is seen here as it is made.
+	private static final ConcurrentHashMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
 
 	// Table Variable
 	private static final String ID = "ID";
@@ -49,13 +55,57 @@ public class UserManager extends HospitalResourceManager {
 	private UserManager() throws Exception {
 		userTableHandler = new TableHandler("./res/users.csv",
 				Arrays.asList(ID, NAME, ROLE, BIRTH_DATE, GENDER, AGE, BLOOD_TYPE, EMAIL, PHONE), 0);
-
-		// probably not going to read the whole thing in this case. The file may be very
-		// large
+		userTableHandler.setDurability(CSVHandler.Durability.FSYNC);
+
+		// the listener is first handed every existing row, which fills the cache
+		userTableHandler.addRowListener((oldRow, newRow) -> {
+			String oldId = oldRow == null ? null : oldRow.get(userTableHandler.format.getIdColIndex());
+			if (newRow != null) {
+				Profile profile = new Profile(newRow);
+				profiles.put(profile.hospitalId(), profile);
+				// a profile updated in place is replaced, so readers never find it missing
+				if (profile.hospitalId().equals(oldId)) return;
+			}
+			if (oldId != null) profiles.remove(oldId);
+		});
 
 		umInstance = this;
 	}
 
+	/**
+	 * An immutable copy of a row of the user table.
+	 * 
+	 * @param row the (stripped) cells of the row, in table order
+	 */
+	private record Profile(List<String> row) {
+		private Profile {
+			row = List.copyOf(row);
+		}
+
+		private String hospitalId() {
+			return row.get(userTableHandler.format.getIdColIndex());
+		}
+
+		private String get(String variableName) throws UndefinedVariableException, TableMismatchException {
+			return userTableHandler.getFromList(row, variableName);
+		}
+	}
+
+	/**
+	 * Reads a variable of a profile from the cache.
+	 * 
+	 * @param hospitalId the hospitalId of the user
+	 * @param variableName the variable to read
+	 * @return the value; null if there is no such user.
+	 */
+	private static String readProfileVariable(String hospitalId, String variableName) throws 
+		UndefinedVariableException, 
+		TableMismatchException 
+	{
+		Profile profile = profiles.get(hospitalId);
+		return profile == null ? null : profile.get(variableName);
+	}
+
 	/**
 	 * Initializes the UserManager
 	 * @return a handle to the singleton instance of UserManager
@@ -84,8 +134,14 @@ public class UserManager extends HospitalResourceManager {
 		RoleNotFoundException, 
 		UndefinedVariableException 
 	{
+		awaitInit(UserManager.class);
 		User user = null;
-		String roleName = userTableHandler.readVariable(hospitalId, ROLE);
+		String roleName;
+		try {
+			roleName = readProfileVariable(hospitalId, ROLE);
+		} catch (TableMismatchException e) {
+			throw new UserNotFoundException("Profile entry of " + hospitalId + " is corrupted.");
+		}
 
 		switch (roleName) {
 		
@@ -121,6 +177,7 @@ public class UserManager extends HospitalResourceManager {
 		}
 
 		public void invoke(String hospitalId) throws Exception {
+			awaitInit(UserManager.class);
 			super.setIssuerId(hospitalId);
 			if (!RoleManager.checkIdHasPermission(hospitalId, super.getCommand()))
 				super.rejectCommand();
@@ -159,7 +216,8 @@ public class UserManager extends HospitalResourceManager {
      * @return True if the user exists, false otherwise.
      */
 	public static boolean isExistentUser(String hospitalId) {
-		return userTableHandler.isExistentId(hospitalId);
+		awaitInit(UserManager.class);
+		return profiles.containsKey(hospitalId);
 	}
 	
 	/**
@@ -176,7 +234,8 @@ public class UserManager extends HospitalResourceManager {
 		TableMismatchException, 
 		UndefinedVariableException 
 	{
-		return userTableHandler.readVariable(hospitalId, NAME);
+		awaitInit(UserManager.class);
+		return readProfileVariable(hospitalId, NAME);
 	}
 
 	/**
@@ -192,7 +251,11 @@ public class UserManager extends HospitalResourceManager {
 		UndefinedVariableException, 
 		TableMismatchException 
 	{
-		List<String> profile = userTableHandler.readRow(hospitalId);
+		Profile cachedProfile = profiles.get(hospitalId);
+		if (cachedProfile == null) {
+			throw new UserNotFoundException("Profile entry unavailable: no user with ID " + hospitalId + ".");
+		}
+		List<String> profile = cachedProfile.row();
 
 		if (profile.size() != userTableHandler.format.getVariableCount()) {
 			throw new UserNotFoundException(
@@ -234,15 +297,15 @@ public class UserManager extends HospitalResourceManager {
 				"Email", "Phone"),
 				Arrays.asList(
 						// elaboration for option Email, etc.
-						"currently " + userTableHandler.readVariable(hospitalId, EMAIL),
-						"currently " + userTableHandler.readVariable(hospitalId, PHONE)),
+						"currently " + localReadVariableNoThrow(hospitalId, EMAIL),
+						"currently " + localReadVariableNoThrow(hospitalId, PHONE)),
 				"Select Field").pollUntilValid().getAnswerString();
 
 		if (choice == null)
 			return;
 
 		System.out.print("Please input new " + choice + ": ");
-		String newVariable = Command.inputScanner.nextLine();
+		String newVariable = Command.getInputScanner().nextLine();
 		userTableHandler.updateVariable(hospitalId, choice, newVariable);
 		System.out.println(choice + " change successful! New Value: " + newVariable);
 	}
@@ -309,7 +372,7 @@ public class UserManager extends HospitalResourceManager {
 	{
 		provideUserProfile(removalId);
 		System.out.println("The user above will be removed. Are you sure? (y/*)");
-		String decision = Command.inputScanner.nextLine();
+		String decision = Command.getInputScanner().nextLine();
 
 		if (!decision.equals("y"))
 			return;
@@ -317,7 +380,7 @@ public class UserManager extends HospitalResourceManager {
 		// If the prompt does not loop until input is valid, do not bother to
 		// specifically start an InputSession
 		System.out.println("Please enter your password: ");
-		String password = Command.inputScanner.nextLine();
+		String password = Command.getInputScanner().nextLine();
 		if (!PasswordManager.checkPassword(adminId, password)) {
 			System.out.println("Password incorrect, better luck next time.");
 			return;
@@ -419,12 +482,11 @@ public class UserManager extends HospitalResourceManager {
 
 	private static String localReadVariableNoThrow(String hospitalId, String verifiedVariableName) {
 		try {
-			return userTableHandler.readVariable(hospitalId, verifiedVariableName);
+			return readProfileVariable(hospitalId, verifiedVariableName);
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
+			// ends the session that asked, rather than the whole system
+			throw new IllegalStateException("Cannot read " + verifiedVariableName + " of " + hospitalId, e);
 		}
-		return null;
 	}
 	
 	/**
@@ -0,0 +1,50 @@
+package hms.target;
+
+import java.util.List;
+
+/**
+ * The convention class between AppointmentManager and MedicationStockManager,
+ * to check or dispense all medicines of a prescription in a single command.
+ * The availability of each of its {@link MedicationStockModifier}s is set
+ * medicine by medicine; whether the prescription as a whole was dispensed is
+ * told by {@link #isDispensed()}.
+ */
+public class PrescriptionBatch {
+	private final List<MedicationStockModifier> medicines;
+	private boolean dispensed;
+
+	/**
+	 * Constructs a PrescriptionBatch object
+	 * @param medicines the medicines of the prescription, each with the amount
+	 * to dispense. A medicine may appear more than once.
+	 */
+	public PrescriptionBatch(List<MedicationStockModifier> medicines) {
+		this.medicines = List.copyOf(medicines);
+		this.dispensed = false;
+	}
+
+	/**
+	 * Gets the medicines of this prescription
+	 * @return an unmodifiable list of the medicines
+	 */
+	public List<MedicationStockModifier> getMedicines() {
+		return this.medicines;
+	}
+
+	/**
+	 * Checks whether this prescription was dispensed. Either all of its medicines
+	 * were dispensed, or none was.
+	 * @return true if dispensed; false otherwise.
+	 */
+	public boolean isDispensed() {
+		return this.dispensed;
+	}
+
+	/**
+	 * Indicates whether this prescription was dispensed
+	 * @param dispensed true if all of its medicines were dispensed, false if none was.
+	 */
+	public void setDispensed(boolean dispensed) {
+		this.dispensed = dispensed;
+	}
+}
@@ -3,6 +3,7 @@ package hms.user;
 import hms.HospitalManagementSystem;
 import hms.manager.AppointmentManager;
 import hms.manager.MedicationStockManager;
+import hms.manager.RoleManager;
 import hms.manager.UserManager;
 import hms.utility.PromptFormatter;
 
@@ -18,6 +19,7 @@ public class Administrator extends User {
 			System.out.println("-vms	View Medication Stock");
 			System.out.println("-mms	Modify Medicatioin Stock");
 			System.out.println("-rrr	Review Replenishment Request");
+			System.out.println("-rp	Reload Permissions");
 			System.out.println("-sd	Shutdown HMS");
 			super.usersCommonMenu();
 			PromptFormatter.printSeparation("");
@@ -58,10 +60,16 @@ public class Administrator extends User {
 				HospitalManagementSystem.dispatchCommand(new MedicationStockManager.Command("REVIEW_REPLENISHMENT_REQUEST"));
 			}
 			
+			case "-rp" -> {
+				HospitalManagementSystem.dispatchCommand(new RoleManager.Command("RELOAD_PERMISSIONS"));
+				break;
+			}
+			
 			case "-sd" -> {
-				System.out.println("Shutting down System...");
-				PromptFormatter.clearScreen();
-				System.exit(0);
+				if (!HospitalManagementSystem.shutdown()) {
+					System.out.println("\nThe system can only be shut down from its console.");
+				}
+				break;
 			}
 
 			default -> {
@@ -1,51 +1,39 @@
 package hms.utility;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Represents an action of a specific name
- * This class is essentially a wrapper for a String and provides equality
- * checking and a string representation for the action.
+ * Interns action names into small int ids, the same for the whole process, so
+ * that sets of actions can be stored as bitsets indexed by id.
  */
-// Basically just a String wrapper
-public class Action {
-	private final String name;
-	
-	/**
-     * Constructs an Action with the specified name.
-     *
-     * @param name the name of the action
-     */
-	public Action(String name) {
-		this.name = name;
-	}
+public final class Action {
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static final AtomicInteger nextId = new AtomicInteger(0);
 	
-	/**
-     * Retrieves the name of this action.
-     *
-     * @return the name of the action
-     */
-	public String getName() {
-		return name;
+	private Action() {
 	}
 	
 	/**
-     * Returns a string representation of the action.
+     * Interns an action name, assigning it the next free id if it has none yet.
      *
-     * @return a string in the format "Action: {name}"
+     * @param name the name of the action
+     * @return the id of the action, from 0 up in the order names were interned
      */
-	public String toString() {
-		return "Action: " + this.getName();
+	public static int idOf(String name) {
+		Integer id = ids.get(name);
+		return id != null ? id : ids.computeIfAbsent(name, n -> nextId.getAndIncrement());
 	}
 	
 	/**
-     * Compares this action to the specified object to check if they are equal.
-     * Two actions are considered equal if their names are the same.
+     * Looks up the id of an action name without interning it, so that
+     * arbitrary names do not grow the id space.
      *
-     * @param o the object to compare to
-     * @return true if the specified object is an Action with the same name,
-     *         false otherwise
+     * @param name the name of the action
+     * @return the id of the action; -1 if the name was never interned
      */
-	@Override
-	public boolean equals(Object o) {
-		return o instanceof Action && ((Action)o).name.equals(this.name);
+	public static int lookupId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
 	}
 }
\ No newline at end of file
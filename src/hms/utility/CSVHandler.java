@@ -1,16 +1,28 @@
 package hms.utility;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -19,6 +31,17 @@ import java.util.stream.IntStream;
  * of the table represented by the CSV. The derivatives of this class
  * could be non-rectangular, i.e., having variable number of columns
  * each row.
+ * <br><br>
+ * Files named with {@link ColumnarTableFile#EXTENSION} are stored in the
+ * binary {@link ColumnarTableFile} format instead, behind the same API.
+ * <br><br>
+ * A table is safe to use from several threads. Every table has a read-write
+ * lock: reads share the read lock, so scans and queries run side by side, while
+ * mutations, including the rewrite of the file, take the write lock, so that
+ * the writers of a table are serialized and no reader sees a half-applied
+ * mutation. Subclasses take the same lock, through {@link #readLock()} and
+ * {@link #writeLock()}, around operations made of several steps, such as
+ * looking up a row and then updating it.
  */
 public class CSVHandler implements AutoCloseable {
 	/**
@@ -31,62 +54,879 @@ public class CSVHandler implements AutoCloseable {
 	 * to not strip the surrounding whitespace characters of the data
 	 */
 	public static final boolean NO_STRIP = !STRIP;
+	/**
+	 * The journal is compacted into the table file once it holds this many records,
+	 * or as many records as the table has rows, whichever is larger.
+	 */
+	private static final int MIN_JOURNAL_COMPACTION_SIZE = 1024;
+	/**
+	 * How long the compaction on JVM shutdown waits for the write lock of the table.
+	 */
+	private static final long COMPACTION_HOOK_LOCK_TIMEOUT_SECONDS = 2;
+	private static final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
 	private String filePath;
 	private Data data;
+	private final int idColIndex;
+	private final ReentrantReadWriteLock lock;
+	private volatile ColumnIndex<String> idIndex;
+	private final HashMap<Integer, ColumnIndex<String>> secondaryIndexes;
+	private ColumnIndex<Long> dateTimeIndex;
+	// indexes declared on a mapped table, filled on the first lookup or mutation
+	private final List<ColumnIndex<?>> pendingIndexes;
+	private volatile boolean isIndexPending;
+	private final TableJournal journal;
+	private PersistenceMode persistenceMode;
+	private Durability durability;
+	private Thread compactionHook;
+	private int batchDepth;
+	private boolean isBatchDirty;
+	private final List<String[]> batchRecords;
+	private final List<RowListener> rowListeners;
+	// the version stamp of each row, by row index; 0 for a row unchanged since loading
+	private long[] rowVersions;
+	private long lastRowVersion;
+
+	/**
+	 * Observes the data rows of a table as they are added, removed and rewritten,
+	 * so that state derived from the table can be kept up to date without scanning
+	 * it again. The header row is never reported.
+	 */
+	public interface RowListener {
+		/**
+		 * Called after a data row has changed in memory, including during the
+		 * replay of a journal.
+		 * 
+		 * @param oldRow the stripped row before the change; null if it was added
+		 * @param newRow the stripped row after the change; null if it was removed
+		 */
+		void rowChanged(List<String> oldRow, List<String> newRow);
+	}
+
+	/**
+	 * How far a write must have reached before a mutation returns.
+	 */
+	public enum Durability {
+		/**
+		 * Journal records are left in the buffers of this process until the journal
+		 * is compacted or closed. Table rewrites are not forced to disk. Suited to
+		 * bulk loads, where a crash means starting over anyway.
+		 */
+		NONE,
+		/**
+		 * Every write is handed to the operating system before the mutation returns,
+		 * which survives a crash of this process but not of the machine. This is
+		 * the default.
+		 */
+		FLUSH,
+		/**
+		 * Every write is forced to disk before the mutation returns, including the
+		 * rename that replaces the table file on a rewrite.
+		 */
+		FSYNC
+	}
+
+	/**
+	 * How the content of a table file is brought into memory.
+	 */
+	public enum LoadMode {
+		/**
+		 * The whole file is read and tokenized when the table is opened. This is
+		 * the default.
+		 */
+		EAGER,
+		/**
+		 * The file is memory-mapped when the table is opened, and only scanned for
+		 * the offsets at which its rows start. A row is tokenized the first time it
+		 * is accessed, and the indexes kept on its columns, including the id column,
+		 * are filled on the first lookup or mutation. Suited to large tables of which
+		 * only few rows are read; a query over a column still decodes every row.
+		 * <br><br>
+		 * The file must be smaller than 2 GiB, and is assumed to be UTF-8 encoded.
+		 * {@link ColumnarTableFile Columnar} files are always loaded eagerly.
+		 */
+		MAPPED
+	}
+
+	/**
+	 * How the mutations made on a table reach its file.
+	 */
+	public enum PersistenceMode {
+		/**
+		 * Every mutation rewrites the whole file. This is the default.
+		 */
+		REWRITE,
+		/**
+		 * Every mutation is appended to a write-ahead log next to the file
+		 * ({@code <file>.wal}), which is compacted into the file once it grows
+		 * past the size of the table, when the handler is closed, and when the
+		 * JVM shuts down. The log is replayed when the table is next opened, if
+		 * it was not compacted.
+		 */
+		JOURNAL
+	}
 
 	/**
 	 * A list of {@code String[]} that is used to store the CSV data. Each list
 	 * entry represents a row, and each element in the entry represents a cell.
+	 * <br><br>
+	 * Cells are stripped of their surrounding whitespace once, as the row enters
+	 * the list, so that reading a row does not allocate. The rows as they were
+	 * supplied are only kept alongside when the storage mode is NO_STRIP. The
+	 * arrays handed out by this list are shared and MUST NOT be modified; replace
+	 * the row with {@link #set(int, String[])} instead.
+	 * <br><br>
+	 * When the list is {@link #map(String) mapped} onto a file, the rows of the
+	 * file are held as null entries until they are first read through
+	 * {@link #get(int)} or {@link #getNoStrip(int)}, which decode them from the
+	 * mapping. Iterating the list directly sees those null entries. As readers
+	 * sharing the read lock may decode rows at the same time, reads of a mapped
+	 * list synchronize on it; once unmapped, they do not.
 	 */
 	private static class Data extends ArrayList<String[]> {
 		private static final long serialVersionUID = 1L;
+		private final ArrayList<String[]> rawRows;
+		private transient volatile CSVTokenizer mapping;
+		private long[] rowOffsets;
+		private int mappedRowCount;
+
+		/**
+		 * @param storageMode STRIP to keep only the stripped rows; NO_STRIP to also
+		 *                    keep the rows as they were supplied.
+		 */
+		public Data(boolean storageMode) {
+			this.rawRows = storageMode == NO_STRIP ? new ArrayList<String[]>() : null;
+			this.mapping = null;
+			this.rowOffsets = new long[0];
+			this.mappedRowCount = 0;
+		}
 
 		/**
-		 * Returns the specified row of the table with each cell's content stripped off
-		 * of surrounding whitespace.
+		 * Maps a file into memory and appends a placeholder for each of its rows,
+		 * recording the offset at which the row starts.
 		 */
+		public void map(String filePath) throws IOException {
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+				if (channel.size() > Integer.MAX_VALUE) throw new IOException(
+						filePath + " is too large to be mapped"
+				);
+				// the mapping outlives the channel
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			// Quotes are told apart the way CSVTokenizer does: only a quote opening a
+			// cell starts a quoted cell, and within one only a quote that is not doubled
+			// ends it. Any other quote is a literal character.
+			long[] offsets = new long[64];
+			int count = 0;
+			boolean isQuoted = false;
+			boolean isRowStart = true;
+			boolean isCellStart = true;
+			int limit = buffer.limit();
+			for (int i = 0; i < limit; i++) {
+				if (isRowStart) {
+					if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+					offsets[count++] = i;
+					isRowStart = false;
+				}
+
+				byte b = buffer.get(i);
+				if (isQuoted) {
+					if (b != '"') continue;
+					if (i + 1 < limit && buffer.get(i + 1) == '"') {
+						i++;
+					} else {
+						isQuoted = false;
+					}
+				} else if (b == '"' && isCellStart) {
+					isQuoted = true;
+					isCellStart = false;
+				} else if (b == ',') {
+					isCellStart = true;
+				} else if (b == '\n' || b == '\r') {
+					if (b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n') i++;
+					isRowStart = true;
+					isCellStart = true;
+				} else {
+					isCellStart = false;
+				}
+			}
+
+			this.mapping = new CSVTokenizer(buffer);
+			this.rowOffsets = Arrays.copyOf(offsets, count);
+			this.mappedRowCount = count;
+			for (int i = 0; i < count; i++) {
+				super.add(null);
+				if (rawRows != null) rawRows.add(null);
+			}
+		}
+
+		/**
+		 * Decodes every row that has not been read yet, and releases the mapping.
+		 * Must be done before the mapped file is replaced.
+		 */
+		public void unmap() throws IOException {
+			if (mapping == null) return;
+
+			for (int i = 0; i < mappedRowCount; i++) {
+				this.get(i);
+			}
+			this.mapping = null;
+			this.rowOffsets = new long[0];
+			this.mappedRowCount = 0;
+		}
+
+		/**
+		 * @return true if some rows may not have been decoded from the mapping yet.
+		 */
+		public boolean isMapped() {
+			return mapping != null;
+		}
+
+		private String[] decode(int index) {
+			String[] row;
+			try {
+				mapping.seek((int) rowOffsets[index]);
+				row = mapping.nextRow();
+			} catch (IOException e) {
+				// the offsets were found by a scan of the same bytes
+				throw new IllegalStateException(e);
+			}
+
+			if (rawRows != null) rawRows.set(index, row);
+			String[] stripped = strip(row);
+			super.set(index, stripped);
+			return stripped;
+		}
+
 		@Override
 		public String[] get(int index) {
-			return Arrays.asList(super.get(index)).stream().map(s -> s.strip()).collect(Collectors.toList())
-					.toArray(new String[0]);
+			if (mapping == null) return super.get(index);
+
+			synchronized (this) {
+				String[] row = super.get(index);
+				return row != null ? row : this.decode(index);
+			}
+		}
+
+		private static String[] strip(String[] row) {
+			String[] stripped = new String[row.length];
+			for (int i = 0; i < row.length; i++) {
+				stripped[i] = row[i].strip();
+			}
+			return stripped;
+		}
+
+		@Override
+		public boolean add(String[] row) {
+			if (rawRows != null) rawRows.add(row);
+			return super.add(strip(row));
+		}
+
+		/**
+		 * Replaces a row, returning the stripped row it replaced.
+		 */
+		@Override
+		public String[] set(int index, String[] row) {
+			String[] oldRow = this.get(index);
+			if (rawRows != null) rawRows.set(index, row);
+			super.set(index, strip(row));
+			return oldRow;
+		}
+
+		/**
+		 * Removes a row, returning the stripped row removed.
+		 */
+		@Override
+		public String[] remove(int index) {
+			String[] oldRow = this.get(index);
+			if (index < mappedRowCount) {
+				System.arraycopy(rowOffsets, index + 1, rowOffsets, index, mappedRowCount - index - 1);
+				mappedRowCount--;
+			}
+			if (rawRows != null) rawRows.remove(index);
+			super.remove(index);
+			return oldRow;
 		}
 
+		/**
+		 * Returns the specified row of the table as it was supplied, if the storage mode
+		 * retains it; the stripped row otherwise.
+		 */
 		public String[] getNoStrip(int index) {
-			return super.get(index);
+			if (rawRows == null) return this.get(index);
+			if (mapping == null) return rawRows.get(index);
+
+			synchronized (this) {
+				String[] row = rawRows.get(index);
+				if (row == null) {
+					this.decode(index);
+					row = rawRows.get(index);
+				}
+				return row;
+			}
 		}
 	}
 
 	/**
-	 * Loads a file and stores its content in memory.
+	 * Loads a file and stores its content in memory, stripped of the whitespace
+	 * surrounding each cell.
 	 * 
 	 * @param filePath path of the file to be read
+	 * @param idColIndex the column index holding the ids of the rows. An index
+	 *                   of this column is maintained so that {@link #findId(String, int)}
+	 *                   on it does not scan the table.
 	 * @throws IOException see link for reasons this exception maybe thrown.
 	 */
 	protected CSVHandler(String filePath, int idColIndex) throws IOException {
+		this(filePath, idColIndex, STRIP);
+	}
+
+	/**
+	 * Loads a file and stores its content in memory.
+	 * 
+	 * @param filePath    path of the file to be read
+	 * @param idColIndex  the column index holding the ids of the rows.
+	 * @param storageMode STRIP to store the stripped cells only; NO_STRIP to also
+	 *                    retain the cells as they are in the file, for reads that
+	 *                    specify NO_STRIP. Writes preserve the retained form.
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	protected CSVHandler(String filePath, int idColIndex, boolean storageMode) throws IOException {
+		this(filePath, idColIndex, storageMode, LoadMode.EAGER);
+	}
+
+	/**
+	 * Opens a file, either loading its content into memory, or mapping it.
+	 * 
+	 * @param filePath    path of the file to be read
+	 * @param idColIndex  the column index holding the ids of the rows.
+	 * @param storageMode STRIP to store the stripped cells only; NO_STRIP to also
+	 *                    retain the cells as they are in the file.
+	 * @param loadMode    see {@link LoadMode}
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	protected CSVHandler(String filePath, int idColIndex, boolean storageMode, LoadMode loadMode)
+			throws IOException {
+		long loadStart = System.nanoTime();
 		this.filePath = filePath;
-		this.data = new Data();
+		this.lock = new ReentrantReadWriteLock();
+		this.data = new Data(storageMode);
+		this.idColIndex = idColIndex;
+		this.idIndex = null;
+		this.secondaryIndexes = new HashMap<Integer, ColumnIndex<String>>();
+		this.dateTimeIndex = null;
+		this.pendingIndexes = new ArrayList<ColumnIndex<?>>();
+		this.isIndexPending = false;
+		this.journal = new TableJournal(filePath);
+		this.persistenceMode = PersistenceMode.REWRITE;
+		this.durability = Durability.FLUSH;
+		this.compactionHook = null;
+		this.batchDepth = 0;
+		this.isBatchDirty = false;
+		this.batchRecords = new ArrayList<String[]>();
+		this.rowListeners = new ArrayList<RowListener>();
+		this.lastRowVersion = 0;
 
-		try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] row = line.split(",");
+		if (ColumnarTableFile.isColumnar(filePath)) {
+			for (String[] row : ColumnarTableFile.read(filePath)) {
 				data.add(row);
 			}
+			this.idIndex();
+		} else if (loadMode == LoadMode.MAPPED) {
+			data.map(filePath);
+		} else {
+			try (CSVTokenizer tokenizer = new CSVTokenizer(new FileReader(filePath))) {
+				String[] row;
+				while ((row = tokenizer.nextRow()) != null) {
+					data.add(row);
+				}
+			}
+			this.idIndex();
+		}
+		this.rowVersions = new long[data.size()];
+
+		// Mutations that were journaled but never compacted into the file. The
+		// journal is kept until the next rewrite of the file, see writeAllData()
+		for (String[] record : journal.readAll()) {
+			replay(record);
+		}
+
+		loadTimes.put(filePath, System.nanoTime() - loadStart);
+	}
+
+	/**
+	 * Gets the time each table opened so far took to load, including the replay
+	 * of its journal.
+	 * @return the load times in nanoseconds, by the path of the table file
+	 */
+	public static Map<String, Long> getLoadTimes() {
+		return new HashMap<String, Long>(loadTimes);
+	}
+
+	/**
+	 * @return the index kept on the id column, built on the first call. The first
+	 *         call may come from any number of readers at once.
+	 */
+	private ColumnIndex<String> idIndex() {
+		ColumnIndex<String> index = idIndex;
+		if (index != null) return index;
+
+		synchronized (this) {
+			if (idIndex == null) {
+				index = ColumnIndex.onColumn(idColIndex);
+				for (int i = 1; i < data.size(); i++) {
+					index.insert(i, data.get(i));
+				}
+				idIndex = index;
+			}
+			return idIndex;
+		}
+	}
+
+	/**
+	 * Gets the lock that readers of this table share. Held by every read of this
+	 * class; subclasses hold it across reads that must see the same table.
+	 * 
+	 * @return the read lock of this table
+	 */
+	protected Lock readLock() {
+		return lock.readLock();
+	}
+
+	/**
+	 * Gets the lock that writers of this table take in turn. Held by every mutation
+	 * of this class, and by a {@link #beginBatch() batch}; subclasses hold it across
+	 * a lookup and the mutation that depends on it. The holder may also read.
+	 * 
+	 * @return the write lock of this table
+	 */
+	protected Lock writeLock() {
+		return lock.writeLock();
+	}
+
+	/**
+	 * Declares an index on a column, so that {@link #findRows(String, int)} on it
+	 * does not scan the table. The index is kept up to date on every mutation from
+	 * then on. Declaring an index that already exists has no effect.
+	 * 
+	 * @param colIndex the 0-based index of the column to index
+	 */
+	protected void createIndex(int colIndex) {
+		lock.writeLock().lock();
+		try {
+			if (colIndex == this.idColIndex || secondaryIndexes.containsKey(colIndex)) return;
+
+			ColumnIndex<String> index = ColumnIndex.onColumn(colIndex);
+			this.fill(index);
+			secondaryIndexes.put(colIndex, index);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fills a newly declared index with the rows of the table. On a mapped table,
+	 * this is put off until an index is first needed, see {@link #fillIndexes()}.
+	 */
+	private void fill(ColumnIndex<?> index) {
+		if (data.isMapped()) {
+			pendingIndexes.add(index);
+			isIndexPending = true;
+			return;
+		}
+
+		for (int i = 1; i < data.size(); i++) {
+			index.insert(i, data.get(i));
+		}
+	}
+
+	/**
+	 * Fills the indexes of a mapped table that were put off, including the one on
+	 * the id column. Must be called before a lookup in an index, and before a
+	 * mutation changes the rows the indexes would be filled from. The first call
+	 * may come from any number of readers at once.
+	 */
+	private void fillIndexes() {
+		this.idIndex();
+		if (!isIndexPending) return;
+
+		synchronized (this) {
+			if (!isIndexPending) return;
+
+			for (ColumnIndex<?> index : pendingIndexes) {
+				for (int i = 1; i < data.size(); i++) {
+					index.insert(i, data.get(i));
+				}
+			}
+			pendingIndexes.clear();
+			isIndexPending = false;
+		}
+	}
+
+	/**
+	 * Declares a sorted index on the date and time held in four columns, as read by
+	 * {@link Date#pack(String, String, String, String)}, so that
+	 * {@link #findRowsBetween(long, long)} does not scan the table. The index is kept
+	 * up to date on every mutation from then on. A table has at most one such index;
+	 * declaring another replaces it.
+	 * 
+	 * @param dayCol   0-based index of the column holding the day of the month
+	 * @param monthCol 0-based index of the column holding the name of the month
+	 * @param yearCol  0-based index of the column holding the year
+	 * @param timeCol  0-based index of the column holding the time, in the format H[H]:MM
+	 */
+	protected void createDateTimeIndex(int dayCol, int monthCol, int yearCol, int timeCol) {
+		lock.writeLock().lock();
+		try {
+			ColumnIndex<Long> index = ColumnIndex.onDateTime(dayCol, monthCol, yearCol, timeCol);
+			this.fill(index);
+			dateTimeIndex = index;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds all rows whose date and time lies in a range, using the index declared
+	 * by {@link #createDateTimeIndex(int, int, int, int)}.
+	 * 
+	 * @param fromEpochMinutes the start of the range, inclusive, see {@link Date#pack(int, int, int, int)}
+	 * @param toEpochMinutes   the end of the range, exclusive
+	 * @return the 0-based indices of the rows, in ascending order; null if the table
+	 *         has no date and time index.
+	 */
+	protected int[] findRowsBetween(long fromEpochMinutes, long toEpochMinutes) {
+		lock.readLock().lock();
+		try {
+			this.fillIndexes();
+			return dateTimeIndex == null ? null : dateTimeIndex.rowsBetween(fromEpochMinutes, toEpochMinutes);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether a column is indexed, either as the id column or by
+	 * {@link #createIndex(int)}.
+	 * 
+	 * @param colIndex 0-based column index
+	 * @return true if {@link #findRows(String, int)} on the column uses an index.
+	 */
+	protected boolean isIndexed(int colIndex) {
+		lock.readLock().lock();
+		try {
+			return colIndex == this.idColIndex || secondaryIndexes.containsKey(colIndex);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds all rows holding a value in an indexed column.
+	 * 
+	 * @param value    the (stripped) value to look for
+	 * @param colIndex 0-based index of an indexed column
+	 * @return the 0-based indices of the rows holding the value, in ascending order;
+	 *         null if the column is not indexed.
+	 */
+	protected int[] findRows(String value, int colIndex) {
+		lock.readLock().lock();
+		try {
+			this.fillIndexes();
+			if (colIndex == this.idColIndex) return idIndex().rows(value);
+
+			ColumnIndex<String> index = secondaryIndexes.get(colIndex);
+			return index == null ? null : index.rows(value);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Registers a listener to be notified of every change made to the data rows
+	 * from then on. The listener is first told of every existing data row, as if
+	 * it had just been added, so that it starts from the current content of the
+	 * table. On a {@link LoadMode#MAPPED mapped} table this decodes every row.
+	 * Registering a listener that is already registered has no effect.
+	 * 
+	 * @param listener the listener
+	 */
+	public void addRowListener(RowListener listener) {
+		lock.writeLock().lock();
+		try {
+			if (rowListeners.contains(listener)) return;
+
+			for (int i = 1; i < data.size(); i++) {
+				listener.rowChanged(null, Collections.unmodifiableList(Arrays.asList(data.get(i))));
+			}
+			rowListeners.add(listener);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops notifying a listener registered with {@link #addRowListener(RowListener)}.
+	 * 
+	 * @param listener the listener
+	 */
+	public void removeRowListener(RowListener listener) {
+		lock.writeLock().lock();
+		try {
+			rowListeners.remove(listener);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void notifyRowListeners(int rowIndex, String[] oldRow, String[] newRow) {
+		if (rowIndex == 0 || rowListeners.isEmpty()) return;
+
+		List<String> oldView = oldRow == null ? null : Collections.unmodifiableList(Arrays.asList(oldRow));
+		List<String> newView = newRow == null ? null : Collections.unmodifiableList(Arrays.asList(newRow));
+		for (RowListener listener : rowListeners) {
+			listener.rowChanged(oldView, newView);
+		}
+	}
+
+	private void indexInsert(int rowIndex, String[] row) {
+		idIndex().insert(rowIndex, row);
+		for (ColumnIndex<String> index : secondaryIndexes.values()) {
+			index.insert(rowIndex, row);
+		}
+		if (dateTimeIndex != null) dateTimeIndex.insert(rowIndex, row);
+		stampRow(rowIndex);
+		notifyRowListeners(rowIndex, null, row);
+	}
+
+	private void indexRemove(int rowIndex, String[] row) {
+		idIndex().remove(rowIndex, row);
+		idIndex().shiftAfter(rowIndex);
+		for (ColumnIndex<String> index : secondaryIndexes.values()) {
+			index.remove(rowIndex, row);
+			index.shiftAfter(rowIndex);
+		}
+		if (dateTimeIndex != null) {
+			dateTimeIndex.remove(rowIndex, row);
+			dateTimeIndex.shiftAfter(rowIndex);
+		}
+		System.arraycopy(rowVersions, rowIndex + 1, rowVersions, rowIndex, data.size() - rowIndex);
+		notifyRowListeners(rowIndex, row, null);
+	}
+
+	private void indexReplace(int rowIndex, String[] oldRow, String[] newRow) {
+		idIndex().replace(rowIndex, oldRow, newRow);
+		for (ColumnIndex<String> index : secondaryIndexes.values()) {
+			index.replace(rowIndex, oldRow, newRow);
+		}
+		if (dateTimeIndex != null) dateTimeIndex.replace(rowIndex, oldRow, newRow);
+		stampRow(rowIndex);
+		notifyRowListeners(rowIndex, oldRow, newRow);
+	}
+
+	/**
+	 * Gives a row a version stamp that no row of this table has had before.
+	 */
+	private void stampRow(int rowIndex) {
+		if (rowIndex >= rowVersions.length)
+			rowVersions = Arrays.copyOf(rowVersions, Math.max(16, (rowIndex + 1) * 2));
+		rowVersions[rowIndex] = ++lastRowVersion;
+	}
+
+	/**
+	 * Applies a journal record to the in-memory data.
+	 * 
+	 * @param record the journal record, as written by {@link #persist(String...)}
+	 * @throws IOException if the record is not one this class writes, or does not
+	 *                     fit the table it is replayed on.
+	 */
+	private void replay(String[] record) throws IOException {
+		try {
+			switch (record[0]) {
+				case "A" -> applyNewRow(Arrays.copyOfRange(record, 1, record.length));
+				case "R" -> applyRemoveRow(Integer.parseInt(record[1]));
+				case "U" -> applyUpdateVariable(Integer.parseInt(record[1]), Integer.parseInt(record[2]), record[3]);
+				case "V" -> applyAddValue(Integer.parseInt(record[1]), record[2]);
+				case "X" -> applyRemoveValue(Integer.parseInt(record[1]), Integer.parseInt(record[2]));
+				default -> throw new IOException("Unknown journal record " + record[0]);
+			}
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new IOException("Corrupted journal for " + filePath + ": " + String.join(",", record), e);
+		}
+	}
+
+	/**
+	 * Sets how the mutations made on this table reach its file. Switching away
+	 * from {@link PersistenceMode#JOURNAL} compacts the journal into the file.
+	 * 
+	 * @param mode the new persistence mode
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	public void setPersistenceMode(PersistenceMode mode) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (mode == this.persistenceMode) return;
+
+			if (mode == PersistenceMode.JOURNAL) {
+				this.compactionHook = new Thread(() -> {
+					try {
+						// the thread exiting the JVM may be the one holding the lock; the
+						// journal is replayed on the next open if it is not compacted now
+						if (!lock.writeLock().tryLock(COMPACTION_HOOK_LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) return;
+						try {
+							this.compact();
+						} finally {
+							lock.writeLock().unlock();
+						}
+					} catch (IOException | InterruptedException e) {
+						e.printStackTrace();
+					}
+				});
+				Runtime.getRuntime().addShutdownHook(this.compactionHook);
+			} else {
+				this.compact();
+				Runtime.getRuntime().removeShutdownHook(this.compactionHook);
+				this.compactionHook = null;
+			}
+
+			this.persistenceMode = mode;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets how far every write must have reached before a mutation returns. In any
+	 * case, the table file is only ever replaced as a whole, never rewritten in place.
+	 * 
+	 * @param durability the new durability level
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	public void setDurability(Durability durability) throws IOException {
+		lock.writeLock().lock();
+		try {
+			this.durability = durability;
+			journal.setDurability(durability);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the in-memory data to the table file and discards the journal,
+	 * whose records the data already reflects.
+	 * 
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	public void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (journal.size() == 0 && batchRecords.isEmpty()) return;
+
+			writeAllData();
+			// the rewrite also covers whatever an open batch has applied so far
+			batchRecords.clear();
+			isBatchDirty = false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Makes a mutation that was applied to the in-memory data durable, according
+	 * to the persistence mode.
+	 * 
+	 * @param record the mutation as a journal record, the first cell of which is
+	 *               the kind of mutation, see {@link #replay(String[])}.
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	private void persist(String... record) throws IOException {
+		if (batchDepth > 0) {
+			isBatchDirty = true;
+			if (persistenceMode == PersistenceMode.JOURNAL) batchRecords.add(record);
+			return;
+		}
+
+		if (persistenceMode == PersistenceMode.REWRITE) {
+			writeAllData();
+			return;
+		}
+
+		journal.append(record);
+		compactIfDue();
+	}
+
+	private void compactIfDue() throws IOException {
+		if (journal.size() >= Math.max(MIN_JOURNAL_COMPACTION_SIZE, data.size())) {
+			compact();
+		}
+	}
+
+	/**
+	 * Starts a batch of mutations. Until the matching {@link #commitBatch()}, the
+	 * mutations made on this table are only applied in memory; the commit then
+	 * persists all of them at once, with a single rewrite of the table file, or
+	 * a single group of journal records that is replayed all-or-nothing.
+	 * <br><br>
+	 * Batches nest; only the commit of the outermost batch persists. Callers
+	 * should commit in a finally block, so that the mutations made before an
+	 * exception still reach the file.
+	 * <br><br>
+	 * A batch holds the write lock of the table until it is committed, by the same
+	 * thread, so other threads see either none or all of its mutations. Nothing
+	 * that waits on a user should happen within a batch.
+	 */
+	public void beginBatch() {
+		lock.writeLock().lock();
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch of mutations started with {@link #beginBatch()}, persisting them
+	 * if this ends the outermost batch.
+	 * 
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	public void commitBatch() throws IOException {
+		if (!lock.isWriteLockedByCurrentThread() || batchDepth == 0) throw new IllegalStateException(
+				"Batch commit without a batch on " + filePath
+		);
+
+		try {
+			if (--batchDepth > 0 || !isBatchDirty) return;
+
+			isBatchDirty = false;
+			if (persistenceMode == PersistenceMode.REWRITE) {
+				writeAllData();
+				return;
+			}
+
+			List<String[]> records = new ArrayList<String[]>(batchRecords);
+			batchRecords.clear();
+			journal.appendAll(records);
+			compactIfDue();
+		} finally {
+			// the hold taken by the matching beginBatch()
+			lock.writeLock().unlock();
 		}
 	}
 
 	
 	protected List<String> readColumn(int colIndex) {
-		List<String> column = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			List<String> column = new ArrayList<String>();
 
-		IntStream.range(1, data.size()).forEach(i -> {
-			// Avoiding data.subList as it is even more complex to override to strip
-			// whitespace
-			String[] row = data.get(i);
-			if (row.length > colIndex) column.add(row[colIndex]);
-		});
+			IntStream.range(1, data.size()).forEach(i -> {
+				String[] row = data.get(i);
+				if (row.length > colIndex) column.add(row[colIndex]);
+			});
 
-		return column;
+			return column;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 	
 	/**
@@ -107,24 +947,74 @@ public class CSVHandler implements AutoCloseable {
 	 *         {@code valueConstructor} on each value read from {@code col2}.
 	 */
 	protected <T> HashMap<String, T> readTwoColumns(int col1, int col2, Function<String, T> valueConstructor) {
-		HashMap<String, T> map = new HashMap<>();
-
-		IntStream.range(1, data.size()).forEach(i -> {
-			// Avoiding data.subList as it is even more complex to override to strip
-			// whitespace
-			String[] row = data.get(i);
-			if (row.length > col1 && row.length > col2) {
-				map.put(row[col1], valueConstructor.apply(row[col2]));
-			}
-		});
+		lock.readLock().lock();
+		try {
+			HashMap<String, T> map = new HashMap<>();
+
+			IntStream.range(1, data.size()).forEach(i -> {
+				String[] row = data.get(i);
+				if (row.length > col1 && row.length > col2) {
+					map.put(row[col1], valueConstructor.apply(row[col2]));
+				}
+			});
 
-		return map;
+			return map;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 	
 	protected HashMap<String, String> readTwoColumns(int col1, int col2) {
 		return this.readTwoColumns(col1, col2, s -> s);
 	}
 
+	/**
+	 * @return the number of rows in the table, the header included.
+	 */
+	protected int getRowCount() {
+		lock.readLock().lock();
+		try {
+			return data.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the version stamp of a row. The stamp changes whenever the row does,
+	 * and no two states of the rows of this table share one, so a row that still
+	 * has the stamp it had when it was read has not changed since. Stamps are not
+	 * persisted; a table starts over from 0 for every row each time it is opened.
+	 * 
+	 * @param rowIndex 0-based row index
+	 * @return the version stamp of the row
+	 */
+	protected long readVersion(int rowIndex) {
+		lock.readLock().lock();
+		try {
+			return rowVersions[rowIndex];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets a read-only view of a row, without copying its cells. Meant for scans
+	 * that only look at most rows.
+	 * 
+	 * @param rowIndex 0-based row index
+	 * @return an unmodifiable view of the (stripped) cells of the row. The view
+	 *         does not follow later changes to the row.
+	 */
+	protected List<String> readRowView(int rowIndex) {
+		lock.readLock().lock();
+		try {
+			return Collections.unmodifiableList(Arrays.asList(data.get(rowIndex)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Reads a row identified by a by index.
 	 * 
@@ -135,12 +1025,17 @@ public class CSVHandler implements AutoCloseable {
 	 *         will not be reflected in the data array internal to this CSVHandler.
 	 */
 	protected List<String> readRow(int rowIndex) {
-		List<String> rowData = new ArrayList<String>(Arrays.asList(data.get(rowIndex).clone()));
+		lock.readLock().lock();
+		try {
+			List<String> rowData = new ArrayList<String>(Arrays.asList(data.get(rowIndex)));
 
-		if (rowData.size() == 0)
-			return null;
+			if (rowData.size() == 0)
+				return null;
 
-		return rowData;
+			return rowData;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -152,13 +1047,19 @@ public class CSVHandler implements AutoCloseable {
 	 * @return the row index of the id if found. -1 otherwise.
 	 */
 	protected int findId(String id, int idColIndex) {
+		lock.readLock().lock();
+		try {
+			if (idColIndex == this.idColIndex) return idIndex().first(id);
 
-		for (int i = 1; i < data.size(); i++) {
-			if (data.get(i)[idColIndex].equals(id))
-				return i;
-		}
+			for (int i = 1; i < data.size(); i++) {
+				if (data.get(i)[idColIndex].equals(id))
+					return i;
+			}
 
-		return -1;
+			return -1;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -173,11 +1074,23 @@ public class CSVHandler implements AutoCloseable {
 		return this.readVariable(rowIndex, colIndex, STRIP);
 	}
 	
+	/**
+	 * Reads a specific variable from a row identified by column index (0-based).
+	 * 
+	 * @param isStrip NO_STRIP to read the cell as it is in the file. This is only
+	 *                honoured if this handler was constructed with the NO_STRIP
+	 *                storage mode; the stripped cell is returned otherwise.
+	 */
 	protected String readVariable(int rowIndex, int colIndex, boolean isStrip) {
-		if (isStrip) {
-			return data.get(rowIndex)[colIndex];
+		lock.readLock().lock();
+		try {
+			if (isStrip) {
+				return data.get(rowIndex)[colIndex];
+			}
+			return data.getNoStrip(rowIndex)[colIndex];
+		} finally {
+			lock.readLock().unlock();
 		}
-		return data.getNoStrip(rowIndex)[colIndex];
 	}
 
 	/**
@@ -190,12 +1103,41 @@ public class CSVHandler implements AutoCloseable {
 	 * @throws IOException see link for reasons this exception maybe thrown.
 	 */
 	protected void writeNewRow(List<String> rowData) throws IOException {
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(filePath, true))) {
-			bw.write(String.join(",", rowData));
-			bw.newLine();
+		lock.writeLock().lock();
+		try {
+			String[] row = rowData.toArray(new String[0]);
+
+			// a columnar file cannot be appended to, its columns are stored one after another;
+			// nor can a file that a replayed journal is still to be compacted into
+			if (persistenceMode == PersistenceMode.JOURNAL || batchDepth > 0 || ColumnarTableFile.isColumnar(filePath)
+					|| journal.size() > 0) {
+				applyNewRow(row);
+				String[] record = new String[row.length + 1];
+				record[0] = "A";
+				System.arraycopy(row, 0, record, 1, row.length);
+				persist(record);
+				return;
+			}
+
+			// Appending never truncates the file, so the row is written in place
+			try (FileOutputStream fos = new FileOutputStream(filePath, true);
+					BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos))) {
+				bw.write(CSVTokenizer.join(rowData));
+				bw.newLine();
+				bw.flush();
+				if (durability == Durability.FSYNC) fos.getChannel().force(true);
+			}
+			// Also update the in-memory data
+			applyNewRow(row);
+		} finally {
+			lock.writeLock().unlock();
 		}
-		// Also update the in-memory data
-		data.add(rowData.toArray(new String[0]));
+	}
+
+	private void applyNewRow(String[] row) {
+		this.fillIndexes();
+		data.add(row);
+		indexInsert(data.size() - 1, data.get(data.size() - 1));
 	}
 
 	/**
@@ -206,10 +1148,22 @@ public class CSVHandler implements AutoCloseable {
 	 * @throws IOException
 	 */
 	protected List<String> removeRow(int rowIndex) throws IOException {
-		List<String> ret = Arrays.asList(data.remove(rowIndex));
-		writeAllData();
+		lock.writeLock().lock();
+		try {
+			List<String> ret = Arrays.asList(applyRemoveRow(rowIndex));
+			persist("R", String.valueOf(rowIndex));
 
-		return ret;
+			return ret;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private String[] applyRemoveRow(int rowIndex) {
+		this.fillIndexes();
+		String[] removedRow = data.remove(rowIndex);
+		indexRemove(rowIndex, removedRow);
+		return removedRow;
 	}
 
 	/**
@@ -221,11 +1175,22 @@ public class CSVHandler implements AutoCloseable {
 	 * @throws IOException see link for reasons this exception maybe thrown.
 	 */
 	protected void updateVariable(int rowIndex, int colIndex, String newValue) throws IOException {
-		String[] newRow = data.get(rowIndex);
+		lock.writeLock().lock();
+		try {
+			applyUpdateVariable(rowIndex, colIndex, newValue);
+			// Write back the updated data to the file
+			persist("U", String.valueOf(rowIndex), String.valueOf(colIndex), newValue);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void applyUpdateVariable(int rowIndex, int colIndex, String newValue) {
+		this.fillIndexes();
+		String[] newRow = data.getNoStrip(rowIndex).clone();
 		newRow[colIndex] = newValue;
-		data.set(rowIndex, newRow);
-		// Write back the updated data to the file
-		writeAllData();
+		String[] oldRow = data.set(rowIndex, newRow);
+		indexReplace(rowIndex, oldRow, data.get(rowIndex));
 	}
 
 	/**
@@ -236,12 +1201,22 @@ public class CSVHandler implements AutoCloseable {
 	 * @throws IOException
 	 */
 	protected void addValue(int rowIndex, String newValue) throws IOException {
-		List<String> newRow = new ArrayList<String>(Arrays.asList(data.get(rowIndex)));
-		newRow.add(newValue);
+		lock.writeLock().lock();
+		try {
+			applyAddValue(rowIndex, newValue);
+			persist("V", String.valueOf(rowIndex), newValue);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-		data.set(rowIndex, newRow.toArray(new String[0]));
+	private void applyAddValue(int rowIndex, String newValue) {
+		this.fillIndexes();
+		List<String> newRow = new ArrayList<String>(Arrays.asList(data.getNoStrip(rowIndex)));
+		newRow.add(newValue);
 
-		writeAllData();
+		String[] oldRow = data.set(rowIndex, newRow.toArray(new String[0]));
+		indexReplace(rowIndex, oldRow, data.get(rowIndex));
 	}
 
 	/**
@@ -255,11 +1230,24 @@ public class CSVHandler implements AutoCloseable {
 	 * @throws IOException
 	 */
 	protected String removeValue(int rowIndex, int valueIndex) throws IOException {
-		List<String> newRow = new ArrayList<String>(Arrays.asList(data.get(rowIndex)));
-		String ret = newRow.remove(valueIndex);
+		lock.writeLock().lock();
+		try {
+			String ret = applyRemoveValue(rowIndex, valueIndex);
+			persist("X", String.valueOf(rowIndex), String.valueOf(valueIndex));
+
+			return ret;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private String applyRemoveValue(int rowIndex, int valueIndex) {
+		this.fillIndexes();
+		List<String> newRow = new ArrayList<String>(Arrays.asList(data.getNoStrip(rowIndex)));
+		String ret = newRow.remove(valueIndex).strip();
 
-		data.set(rowIndex, newRow.toArray(new String[0]));
-		writeAllData();
+		String[] oldRow = data.set(rowIndex, newRow.toArray(new String[0]));
+		indexReplace(rowIndex, oldRow, data.get(rowIndex));
 
 		return ret;
 	}
@@ -273,26 +1261,90 @@ public class CSVHandler implements AutoCloseable {
 	 * @return the table data
 	 */
 	public List<List<String>> getData() {
-		return this.data.stream().map(r -> Arrays.asList(r)).toList();
+		lock.readLock().lock();
+		try {
+			return IntStream.range(0, data.size())
+					.mapToObj(i -> Collections.unmodifiableList(Arrays.asList(data.get(i))))
+					.toList();
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * Writes {@code this.data} back to the CSV file associated with this handler.
+	 * Writes {@code this.data} back to the CSV file associated with this handler,
+	 * and discards the journal, whose records the data already reflects.
 	 * 
 	 * @throws IOException see link for reasons this exception maybe thrown.
 	 */
 	private void writeAllData() throws IOException {
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(filePath))) {
-			for (String[] row : data) {
-				bw.write(String.join(",", row));
-				bw.newLine();
+		// The live file is never truncated: the data is written to a temporary file
+		// next to it, which then replaces it in a single rename. A crash leaves either
+		// the old or the new table behind, never a partial one.
+		data.unmap();
+		Path target = Paths.get(filePath).toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+
+		try {
+			// temporary files are created private to their owner; the table keeps its own permissions
+			try {
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+			} catch (UnsupportedOperationException e) {
+				// permissions are not POSIX on this platform
+			}
+
+			if (ColumnarTableFile.isColumnar(filePath)) {
+				try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+					ColumnarTableFile.write(
+							fos, IntStream.range(0, data.size()).mapToObj(i -> data.getNoStrip(i)).toList()
+					);
+					if (durability == Durability.FSYNC) fos.getChannel().force(true);
+				}
+			} else {
+				try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+						BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos))) {
+					for (int i = 0; i < data.size(); i++) {
+						bw.write(CSVTokenizer.join(data.getNoStrip(i)));
+						bw.newLine();
+					}
+					bw.flush();
+					if (durability == Durability.FSYNC) fos.getChannel().force(true);
+				}
 			}
+
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			if (durability == Durability.FSYNC) forceDirectory(target.getParent());
+			journal.clear();
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory, e.g., a rename within it, to disk.
+	 * Not all platforms allow a directory to be opened; the rename is then as
+	 * durable as the platform makes it.
+	 */
+	private static void forceDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// directories cannot be opened on this platform
 		}
 	}
 
+	/**
+	 * Compacts the journal, if any, into the table file.
+	 */
 	@Override
 	public void close() throws Exception {
-
+		lock.writeLock().lock();
+		try {
+			compact();
+			journal.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	/**
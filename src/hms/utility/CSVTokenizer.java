@@ -0,0 +1,280 @@
+package hms.utility;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Splits CSV text into rows of cells following RFC 4180. A cell may be enclosed
+ * in double quotes, in which case it may hold commas, line breaks and quotes,
+ * the latter written as two consecutive quotes. Unlike {@link String#split(String)},
+ * the empty cells at the end of a row are kept, so that a row always has one
+ * cell more than it has separators.
+ * <br><br>
+ * Rows end at a LF, a CR or a CRLF outside of quotes. An empty line is a row of
+ * a single empty cell, but the line break ending the last row is optional and
+ * does not start another row.
+ * <br><br>
+ * The text is either pulled from a {@link Reader}, through an internal buffer,
+ * or decoded from a {@link ByteBuffer} holding UTF-8. The characters of the
+ * cell being read are collected in a single growable buffer that is reused for
+ * every cell, so reading a row only allocates the strings of its cells and the
+ * array holding them.
+ */
+class CSVTokenizer implements AutoCloseable {
+	private static final int END_OF_INPUT = -1;
+	private static final char SEPARATOR = ',';
+	private static final char QUOTE = '"';
+
+	private final Reader reader;
+	private final char[] readBuffer;
+	private int readPosition;
+	private int readLimit;
+	private final ByteBuffer bytes;
+	private int pendingLowSurrogate;
+
+	private char[] field;
+	private int fieldLength;
+	private final ArrayList<String> row;
+
+	/**
+	 * Tokenizes the text of a {@link Reader}. The reader need not be buffered.
+	 * @param reader the source of the text, closed by {@link #close()}
+	 */
+	CSVTokenizer(Reader reader) {
+		this.reader = reader;
+		this.readBuffer = new char[8192];
+		this.readPosition = 0;
+		this.readLimit = 0;
+		this.bytes = null;
+		this.pendingLowSurrogate = END_OF_INPUT;
+		this.field = new char[64];
+		this.fieldLength = 0;
+		this.row = new ArrayList<String>();
+	}
+
+	/**
+	 * Tokenizes UTF-8 encoded text, from the position to the limit of a buffer.
+	 * The position of the buffer is advanced as the rows are read.
+	 * @param bytes the encoded text
+	 */
+	CSVTokenizer(ByteBuffer bytes) {
+		this.reader = null;
+		this.readBuffer = null;
+		this.readPosition = 0;
+		this.readLimit = 0;
+		this.bytes = bytes;
+		this.pendingLowSurrogate = END_OF_INPUT;
+		this.field = new char[64];
+		this.fieldLength = 0;
+		this.row = new ArrayList<String>();
+	}
+
+	/**
+	 * Splits a single line of CSV text into its cells.
+	 * @param line the line
+	 * @return the cells of the line, a single empty cell if the line is empty.
+	 */
+	static String[] split(String line) {
+		try (CSVTokenizer tokenizer = new CSVTokenizer(new StringReader(line))) {
+			String[] cells = tokenizer.nextRow();
+			return cells == null ? new String[] { "" } : cells;
+		} catch (IOException e) {
+			// a StringReader does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Joins cells into a line of CSV text, the inverse of {@link #split(String)}.
+	 * Cells holding a separator, a quote or a line break are quoted; the others
+	 * are written as they are.
+	 * @param cells the cells
+	 * @return the line, without a line break at the end.
+	 */
+	static String join(String... cells) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < cells.length; i++) {
+			if (i > 0) line.append(SEPARATOR);
+			appendCell(line, cells[i]);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @see #join(String...)
+	 */
+	static String join(Iterable<String> cells) {
+		StringBuilder line = new StringBuilder();
+		boolean isFirst = true;
+		for (String cell : cells) {
+			if (!isFirst) line.append(SEPARATOR);
+			appendCell(line, cell);
+			isFirst = false;
+		}
+		return line.toString();
+	}
+
+	private static void appendCell(StringBuilder line, String cell) {
+		boolean needsQuotes = false;
+		for (int i = 0; i < cell.length() && !needsQuotes; i++) {
+			char c = cell.charAt(i);
+			needsQuotes = c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r';
+		}
+		if (!needsQuotes) {
+			line.append(cell);
+			return;
+		}
+
+		line.append(QUOTE);
+		for (int i = 0; i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			if (c == QUOTE) line.append(QUOTE);
+			line.append(c);
+		}
+		line.append(QUOTE);
+	}
+
+	/**
+	 * Moves to another position of the byte buffer, so that the next row is read
+	 * from there. Only applies to a tokenizer over a {@link ByteBuffer}.
+	 * @param position the position of the first byte of the row
+	 */
+	void seek(int position) {
+		bytes.position(position);
+		pendingLowSurrogate = END_OF_INPUT;
+	}
+
+	/**
+	 * Reads the next row.
+	 * @return the cells of the row; null if there are no more rows.
+	 * @throws IOException if the reader fails; an {@link EOFException} if the text
+	 *                     ends inside a quoted cell.
+	 */
+	String[] nextRow() throws IOException {
+		int c = this.read();
+		if (c == END_OF_INPUT) return null;
+
+		row.clear();
+		while (true) {
+			fieldLength = 0;
+			if (c == QUOTE) {
+				c = this.readQuoted();
+			} else {
+				while (c != SEPARATOR && c != '\n' && c != '\r' && c != END_OF_INPUT) {
+					this.append((char) c);
+					c = this.read();
+				}
+			}
+			row.add(new String(field, 0, fieldLength));
+
+			if (c != SEPARATOR) break;
+			c = this.read();
+		}
+
+		if (c == '\r' && this.peek() == '\n') this.read();
+		return row.toArray(new String[row.size()]);
+	}
+
+	/**
+	 * Reads the rest of a quoted cell, the opening quote having been consumed.
+	 * Anything between the closing quote and the end of the cell is kept as is.
+	 * @return the character ending the cell
+	 */
+	private int readQuoted() throws IOException {
+		while (true) {
+			int c = this.read();
+			if (c == END_OF_INPUT) throw new EOFException("Unterminated quoted cell");
+			if (c != QUOTE) {
+				this.append((char) c);
+				continue;
+			}
+
+			c = this.read();
+			if (c == QUOTE) {
+				this.append(QUOTE);
+				continue;
+			}
+			while (c != SEPARATOR && c != '\n' && c != '\r' && c != END_OF_INPUT) {
+				this.append((char) c);
+				c = this.read();
+			}
+			return c;
+		}
+	}
+
+	private void append(char c) {
+		if (fieldLength == field.length) {
+			char[] grown = new char[field.length * 2];
+			System.arraycopy(field, 0, grown, 0, fieldLength);
+			field = grown;
+		}
+		field[fieldLength++] = c;
+	}
+
+	private int peek() throws IOException {
+		if (bytes != null) {
+			if (pendingLowSurrogate != END_OF_INPUT) return pendingLowSurrogate;
+			return bytes.hasRemaining() ? bytes.get(bytes.position()) & 0xFF : END_OF_INPUT;
+		}
+		if (readPosition == readLimit && !this.fill()) return END_OF_INPUT;
+		return readBuffer[readPosition];
+	}
+
+	private int read() throws IOException {
+		if (bytes != null) return this.decode();
+		if (readPosition == readLimit && !this.fill()) return END_OF_INPUT;
+		return readBuffer[readPosition++];
+	}
+
+	private boolean fill() throws IOException {
+		int count;
+		do {
+			count = reader.read(readBuffer, 0, readBuffer.length);
+		} while (count == 0);
+
+		readPosition = 0;
+		readLimit = Math.max(count, 0);
+		return count > 0;
+	}
+
+	/**
+	 * Decodes the next UTF-8 character of the byte buffer. Characters outside of
+	 * the Basic Multilingual Plane are returned as two surrogates, in two calls.
+	 * Malformed sequences decode to U+FFFD.
+	 */
+	private int decode() {
+		if (pendingLowSurrogate != END_OF_INPUT) {
+			int low = pendingLowSurrogate;
+			pendingLowSurrogate = END_OF_INPUT;
+			return low;
+		}
+		if (!bytes.hasRemaining()) return END_OF_INPUT;
+
+		int lead = bytes.get() & 0xFF;
+		if (lead < 0x80) return lead;
+
+		int continuationCount = lead >= 0xF0 ? 3 : lead >= 0xE0 ? 2 : lead >= 0xC0 ? 1 : -1;
+		if (continuationCount == -1 || bytes.remaining() < continuationCount) return '\uFFFD';
+
+		int codePoint = lead & (0x3F >> continuationCount);
+		for (int i = 0; i < continuationCount; i++) {
+			int next = bytes.get(bytes.position()) & 0xFF;
+			if ((next & 0xC0) != 0x80) return '\uFFFD';
+			bytes.get();
+			codePoint = (codePoint << 6) | (next & 0x3F);
+		}
+
+		if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) return codePoint;
+		pendingLowSurrogate = Character.lowSurrogate(codePoint);
+		return Character.highSurrogate(codePoint);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) reader.close();
+	}
+}
@@ -0,0 +1,222 @@
+package hms.utility;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Maps a key derived from each row, by default the (stripped) value of a single
+ * column, to the 0-based indices of the rows holding it. The rows of each key
+ * are kept in ascending order, so that the first row of a key is exactly the
+ * one a top-down scan of the table would have found first, even when several
+ * rows share a key.
+ * <br><br>
+ * The header row (row 0) is never indexed, nor is a row whose key is null. This
+ * class does not observe the table by itself; the owning {@link CSVHandler} is
+ * responsible for reporting every insertion, removal and rewrite of a row.
+ * 
+ * @param <K> the type of the key
+ */
+class ColumnIndex<K extends Comparable<K>> {
+	private final Function<String[], K> keyOf;
+	private final Map<K, RowList> rowsByValue;
+
+	/**
+	 * An ascending list of row indices, stored as a primitive array.
+	 */
+	private static class RowList {
+		private int[] rows = new int[1];
+		private int size = 0;
+
+		private void insert(int row) {
+			int position = Arrays.binarySearch(rows, 0, size, row);
+			if (position >= 0) return;
+			position = -position - 1;
+
+			if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+			System.arraycopy(rows, position, rows, position + 1, size - position);
+			rows[position] = row;
+			size++;
+		}
+
+		private void remove(int row) {
+			int position = Arrays.binarySearch(rows, 0, size, row);
+			if (position < 0) return;
+
+			System.arraycopy(rows, position + 1, rows, position, size - position - 1);
+			size--;
+		}
+
+		/**
+		 * Accounts for the removal of a row from the table, by moving every row
+		 * index that comes after it one position up.
+		 */
+		private void shiftAfter(int removedRow) {
+			int position = Arrays.binarySearch(rows, 0, size, removedRow);
+			for (int i = position < 0 ? -position - 1 : position + 1; i < size; i++) {
+				rows[i]--;
+			}
+		}
+	}
+
+	private ColumnIndex(Function<String[], K> keyOf, Map<K, RowList> rowsByValue) {
+		this.keyOf = keyOf;
+		this.rowsByValue = rowsByValue;
+	}
+
+	/**
+	 * Constructs an empty index over a column.
+	 * @param colIndex the 0-based index of the indexed column
+	 * @return the index, keyed by the cells of the column
+	 */
+	static ColumnIndex<String> onColumn(int colIndex) {
+		return new ColumnIndex<String>(
+				row -> row.length > colIndex ? row[colIndex] : null,
+				new HashMap<String, RowList>()
+		);
+	}
+
+	/**
+	 * Constructs an empty, sorted index over the date and time held in four
+	 * columns, so that the rows in a range of time can be found with
+	 * {@link #rowsBetween}.
+	 * @param dayCol   the 0-based index of the column holding the day of the month
+	 * @param monthCol the 0-based index of the column holding the name of the month
+	 * @param yearCol  the 0-based index of the column holding the year
+	 * @param timeCol  the 0-based index of the column holding the time
+	 * @return the index, keyed by the date and time as packed by
+	 *         {@link Date#pack(String, String, String, String)}; rows that do not
+	 *         hold a valid date and time are left out.
+	 */
+	static ColumnIndex<Long> onDateTime(int dayCol, int monthCol, int yearCol, int timeCol) {
+		int lastCol = Math.max(Math.max(dayCol, monthCol), Math.max(yearCol, timeCol));
+		return new ColumnIndex<Long>(
+				row -> {
+					if (row.length <= lastCol) return null;
+					try {
+						return Date.pack(row[dayCol], row[monthCol], row[yearCol], row[timeCol]);
+					} catch (NumberFormatException e) {
+						return null;
+					}
+				},
+				new TreeMap<Long, RowList>()
+		);
+	}
+
+	/**
+	 * Extracts the key of a row.
+	 * @param row the stripped row
+	 * @return the key, or null if the row does not have one.
+	 */
+	K keyOf(String[] row) {
+		return this.keyOf.apply(row);
+	}
+
+	/**
+	 * Records that the row at rowIndex holds the supplied row content.
+	 * @param rowIndex 0-based row index
+	 * @param row the stripped row
+	 */
+	void insert(int rowIndex, String[] row) {
+		K key = this.keyOf(row);
+		if (rowIndex == 0 || key == null) return;
+
+		this.rowsByValue.computeIfAbsent(key, k -> new RowList()).insert(rowIndex);
+	}
+
+	/**
+	 * Forgets that the row at rowIndex holds the supplied row content. The other
+	 * row indices are left untouched, see {@link #shiftAfter(int)}.
+	 * @param rowIndex 0-based row index
+	 * @param row the stripped row as it was indexed
+	 */
+	void remove(int rowIndex, String[] row) {
+		K key = this.keyOf(row);
+		if (rowIndex == 0 || key == null) return;
+
+		RowList rows = this.rowsByValue.get(key);
+		if (rows == null) return;
+
+		rows.remove(rowIndex);
+		if (rows.size == 0) this.rowsByValue.remove(key);
+	}
+
+	/**
+	 * Updates the index after the content of a row has been replaced. This is
+	 * a no-op unless the indexed cell changed.
+	 * @param rowIndex 0-based row index
+	 * @param oldRow the stripped row before the change
+	 * @param newRow the stripped row after the change
+	 */
+	void replace(int rowIndex, String[] oldRow, String[] newRow) {
+		K oldKey = this.keyOf(oldRow);
+		K newKey = this.keyOf(newRow);
+		if (oldKey == null ? newKey == null : oldKey.equals(newKey)) return;
+
+		this.remove(rowIndex, oldRow);
+		this.insert(rowIndex, newRow);
+	}
+
+	/**
+	 * Updates the index after a row has been removed from the table. The row
+	 * itself must have been {@link #remove(int, String[]) removed} beforehand.
+	 * @param removedRow 0-based index of the removed row
+	 */
+	void shiftAfter(int removedRow) {
+		this.rowsByValue.values().forEach(rows -> rows.shiftAfter(removedRow));
+	}
+
+	/**
+	 * Looks up the first row holding a key.
+	 * @param value the key to look for
+	 * @return the 0-based index of the first row holding the key; -1 if none.
+	 */
+	int first(K value) {
+		RowList rows = this.rowsByValue.get(value);
+		return rows == null ? -1 : rows.rows[0];
+	}
+
+	/**
+	 * Looks up all rows holding a key.
+	 * @param value the key to look for
+	 * @return a copy of the 0-based indices of the rows holding the key, in
+	 *         ascending order; empty if none.
+	 */
+	int[] rows(K value) {
+		RowList rows = this.rowsByValue.get(value);
+		return rows == null ? new int[0] : Arrays.copyOf(rows.rows, rows.size);
+	}
+
+	/**
+	 * Looks up all rows whose key lies in a range, in O(log n + k) for a sorted
+	 * index of n keys, k of which lie in the range.
+	 * @param from the lowest key of the range, inclusive
+	 * @param to   the highest key of the range, exclusive
+	 * @return the 0-based indices of the rows, in ascending order; empty if none.
+	 * @throws UnsupportedOperationException if the index is not sorted.
+	 */
+	int[] rowsBetween(K from, K to) {
+		if (!(this.rowsByValue instanceof NavigableMap<K, RowList> sortedRows))
+			throw new UnsupportedOperationException("Range lookup on an unsorted index");
+		if (from.compareTo(to) >= 0) return new int[0];
+
+		Map<K, RowList> range = sortedRows.subMap(from, true, to, false);
+		int count = 0;
+		for (RowList rows : range.values()) {
+			count += rows.size;
+		}
+
+		int[] result = new int[count];
+		int position = 0;
+		for (RowList rows : range.values()) {
+			System.arraycopy(rows.rows, 0, result, position, rows.size);
+			position += rows.size;
+		}
+		// rows are only ordered within a key
+		Arrays.sort(result);
+		return result;
+	}
+}
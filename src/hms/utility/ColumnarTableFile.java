@@ -0,0 +1,283 @@
+package hms.utility;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact binary, column-oriented file format for tables, read and written by
+ * {@link CSVHandler} in place of CSV for files named with {@link #EXTENSION}.
+ * The format holds the same rows as the CSV it replaces, header included, so the
+ * rest of the system cannot tell the two apart.
+ * <br><br>
+ * A file consists of, in order, all counts, lengths, indices and values as
+ * variable-length ints ({@link #writeVarInt(DataOutputStream, int) varints}):
+ * <ul>
+ * <li>the magic number and the format version, as fixed-width big-endian ints;</li>
+ * <li>a dictionary of every distinct string in the table, each as its UTF-8
+ * length followed by its bytes;</li>
+ * <li>the schema, i.e., the header row, as dictionary indices;</li>
+ * <li>the number of data rows, the number of columns, and the length of every
+ * data row, since the rows of a wide table do not all have the same length;</li>
+ * <li>every column in turn: its type, followed by one int for every row long
+ * enough to have the column, either the value itself for an {@link #INT_COLUMN}
+ * or a dictionary index for a {@link #STRING_COLUMN}.</li>
+ * </ul>
+ * A column is stored as ints if all of its cells are written exactly as
+ * {@link Integer#toString(int)} writes them, e.g., days, years and quantities,
+ * so that no cell changes on the way through.
+ * <br><br>
+ * Loading is a single read of the whole file, and decodes no text other than the
+ * dictionary. Run this class to convert tables between the two formats:
+ * <pre>
+ * java hms.utility.ColumnarTableFile import &lt;table.csv&gt; &lt;table.tbl&gt;
+ * java hms.utility.ColumnarTableFile export &lt;table.tbl&gt; &lt;table.csv&gt;
+ * </pre>
+ */
+public class ColumnarTableFile {
+	/**
+	 * Table files named with this extension are stored in this format.
+	 */
+	public static final String EXTENSION = ".tbl";
+	private static final int MAGIC = 0x484D5354; // "HMST"
+	private static final short VERSION = 1;
+	private static final byte STRING_COLUMN = 0;
+	private static final byte INT_COLUMN = 1;
+
+	private ColumnarTableFile() {}
+
+	/**
+	 * @param filePath path of a table file
+	 * @return true if the file is stored in this format, judging by its name.
+	 */
+	static boolean isColumnar(String filePath) {
+		return filePath.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads a table file.
+	 * @param filePath path of the file
+	 * @return the rows of the table, the header first.
+	 * @throws IOException see link for reasons this exception maybe thrown, or if
+	 *                     the file is not in this format.
+	 */
+	static List<String[]> read(String filePath) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filePath)));
+
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) throw new IOException(
+					filePath + " is not a table file of a known version"
+			);
+
+			String[] dictionary = new String[readVarInt(buffer)];
+			for (int i = 0; i < dictionary.length; i++) {
+				int length = readVarInt(buffer);
+				dictionary[i] = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+				buffer.position(buffer.position() + length);
+			}
+
+			String[] header = new String[readVarInt(buffer)];
+			for (int i = 0; i < header.length; i++) {
+				header[i] = dictionary[readVarInt(buffer)];
+			}
+
+			String[][] rows = new String[readVarInt(buffer)][];
+			int columnCount = readVarInt(buffer);
+			for (int r = 0; r < rows.length; r++) {
+				rows[r] = new String[readVarInt(buffer)];
+			}
+
+			for (int c = 0; c < columnCount; c++) {
+				boolean isIntColumn = buffer.get() == INT_COLUMN;
+				for (String[] row : rows) {
+					if (row.length <= c) continue;
+					int value = readVarInt(buffer);
+					row[c] = isIntColumn ? Integer.toString(unzigzag(value)) : dictionary[value];
+				}
+			}
+
+			List<String[]> table = new ArrayList<String[]>(rows.length + 1);
+			table.add(header);
+			for (String[] row : rows) {
+				table.add(row);
+			}
+			return table;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException(filePath + " is truncated or corrupted", e);
+		}
+	}
+
+	/**
+	 * Writes a table in this format. The stream is flushed but not closed.
+	 * @param out the stream to write to
+	 * @param table the rows of the table, the header first.
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	static void write(OutputStream out, List<String[]> table) throws IOException {
+		String[] header = table.isEmpty() ? new String[0] : table.get(0);
+		List<String[]> rows = table.subList(Math.min(1, table.size()), table.size());
+
+		int columnCount = 0;
+		for (String[] row : rows) {
+			columnCount = Math.max(columnCount, row.length);
+		}
+
+		boolean[] isIntColumn = new boolean[columnCount];
+		for (int c = 0; c < columnCount; c++) {
+			isIntColumn[c] = true;
+			for (int r = 0; r < rows.size() && isIntColumn[c]; r++) {
+				String[] row = rows.get(r);
+				isIntColumn[c] = row.length <= c || isCanonicalInt(row[c]);
+			}
+		}
+
+		// every string cell, and the header, is stored once in the dictionary
+		HashMap<String, Integer> dictionaryIndices = new HashMap<String, Integer>();
+		List<String> dictionary = new ArrayList<String>();
+		for (String name : header) {
+			if (dictionaryIndices.putIfAbsent(name, dictionary.size()) == null) dictionary.add(name);
+		}
+		for (String[] row : rows) {
+			for (int c = 0; c < row.length; c++) {
+				if (isIntColumn[c]) continue;
+				if (dictionaryIndices.putIfAbsent(row[c], dictionary.size()) == null) dictionary.add(row[c]);
+			}
+		}
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		dos.writeInt(MAGIC);
+		dos.writeShort(VERSION);
+
+		writeVarInt(dos, dictionary.size());
+		for (String string : dictionary) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(dos, bytes.length);
+			dos.write(bytes);
+		}
+
+		writeVarInt(dos, header.length);
+		for (String name : header) {
+			writeVarInt(dos, dictionaryIndices.get(name));
+		}
+
+		writeVarInt(dos, rows.size());
+		writeVarInt(dos, columnCount);
+		for (String[] row : rows) {
+			writeVarInt(dos, row.length);
+		}
+
+		for (int c = 0; c < columnCount; c++) {
+			dos.writeByte(isIntColumn[c] ? INT_COLUMN : STRING_COLUMN);
+			for (String[] row : rows) {
+				if (row.length <= c) continue;
+				writeVarInt(dos, isIntColumn[c] ? zigzag(Integer.parseInt(row[c])) : dictionaryIndices.get(row[c]));
+			}
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Writes an int as an unsigned varint: 7 bits per byte, least significant
+	 * first, the high bit of every byte but the last set. Small values, which
+	 * make up most of a table, take a single byte.
+	 */
+	private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			dos.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dos.writeByte(value);
+	}
+
+	private static int readVarInt(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Maps signed ints onto unsigned ones, so that ints of a small magnitude
+	 * make small varints whatever their sign.
+	 */
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Checks whether a cell is an int written exactly as {@link Integer#toString(int)}
+	 * would write it, i.e., without a sign other than a leading minus, nor leading
+	 * zeroes, nor whitespace.
+	 */
+	private static boolean isCanonicalInt(String cell) {
+		int start = cell.startsWith("-") ? 1 : 0;
+		int length = cell.length() - start;
+		if (length == 0 || length > 10) return false;
+		if (cell.charAt(start) == '0' && (length > 1 || start == 1)) return false;
+
+		for (int i = start; i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+
+		long value = Long.parseLong(cell);
+		return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Converts tables between CSV and this format.
+	 * @param args {@code import <csv> <tbl>} or {@code export <tbl> <csv>}
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+			System.err.println("Usage: ColumnarTableFile import <table.csv> <table" + EXTENSION + ">");
+			System.err.println("       ColumnarTableFile export <table" + EXTENSION + "> <table.csv>");
+			System.exit(2);
+		}
+
+		if (args[0].equals("import")) {
+			List<String[]> table = new ArrayList<String[]>();
+			try (CSVTokenizer tokenizer = new CSVTokenizer(new FileReader(args[1]))) {
+				String[] row;
+				while ((row = tokenizer.nextRow()) != null) {
+					table.add(row);
+				}
+			}
+			try (FileOutputStream fos = new FileOutputStream(args[2])) {
+				write(fos, table);
+			}
+			System.out.println("Imported " + table.size() + " rows into " + args[2]);
+			return;
+		}
+
+		List<String[]> table = read(args[1]);
+		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[2])))) {
+			for (String[] row : table) {
+				bw.write(CSVTokenizer.join(row));
+				bw.newLine();
+			}
+		}
+		System.out.println("Exported " + table.size() + " rows into " + args[2]);
+	}
+}
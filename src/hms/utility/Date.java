@@ -3,14 +3,25 @@ package hms.utility;
 import java.text.DateFormatSymbols;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 
+/**
+ * A date and time, to the minute, as held in the Day, Month, Year and Time Slot
+ * cells of a table.
+ * <br><br>
+ * The static {@link #pack(String, String, String, String) pack} helpers encode
+ * such cells as a single long, the number of minutes since 1 January 1970 00:00,
+ * without allocating, so that dates can be sorted and compared as primitives.
+ * {@link #unpack(long)} turns a packed date back into cells.
+ */
 public class Date implements Comparable<Date> {
 	private int year;
 	private int month;
 	private int day;
 	private int hours;
 	private int minutes;
+	private long epochMinutes;
 	private String stringDate;
 	
 	/** List of all month names. */
@@ -30,8 +41,23 @@ public class Date implements Comparable<Date> {
 	private static final int MONTH = 1;	// expected index format month
 	private static final int YEAR = 2;	// expected index format year
 	private static final int TIME = 3;
-	private static final int HOURS = 0;
-	private static final int MINUTES = 1;
+	
+	private static final int MINUTES_PER_HOUR = 60;
+	/** Number of minutes in a day, i.e., between the same time of two consecutive packed days. */
+	public static final int MINUTES_PER_DAY = 24 * MINUTES_PER_HOUR;
+	
+	/** 0-based index of every month name in {@link #ALL_MONTHS}. */
+	private static final HashMap<String, Integer> MONTH_INDICES = new HashMap<String, Integer>();
+	/** Minute of the day every slot of {@link #ALL_TIMESLOTS} starts at. */
+	private static final int[] TIMESLOT_MINUTES = new int[ALL_TIMESLOTS.size()];
+	static {
+		for (int i = 0; i < ALL_MONTHS.size(); i++) {
+			MONTH_INDICES.put(ALL_MONTHS.get(i), i);
+		}
+		for (int i = 0; i < ALL_TIMESLOTS.size(); i++) {
+			TIMESLOT_MINUTES[i] = parseMinuteOfDay(ALL_TIMESLOTS.get(i));
+		}
+	}
 	
 	/**
      * Constructs a Date object from a list of strings representing the date and time.
@@ -41,17 +67,166 @@ public class Date implements Comparable<Date> {
 	public Date(List<String> date) {
 
 		this.year = Integer.parseInt(date.get(YEAR));
-		this.month = ALL_MONTHS.indexOf(date.get(MONTH));
+		this.month = parseMonth(date.get(MONTH));
 		this.day = Integer.parseInt(date.get(DAY));
-		List<Integer> time = Arrays.asList(date.get(TIME).split(":"))
-				.stream()
-				.map(s -> Integer.parseInt(s))
-				.toList();
-		this.hours = time.get(HOURS);
-		this.minutes = time.get(MINUTES);
+		int minuteOfDay = parseMinuteOfDay(date.get(TIME));
+		this.hours = minuteOfDay / MINUTES_PER_HOUR;
+		this.minutes = minuteOfDay % MINUTES_PER_HOUR;
+		this.epochMinutes = pack(this.year, this.month, this.day, minuteOfDay);
 		
 		this.stringDate = String.join(" ", date);
 	}
+	
+	/**
+	 * Parses the name of a month.
+	 * 
+	 * @param monthName one of {@link #ALL_MONTHS}
+	 * @return the 0-based index of the month, or -1 if the name is not one of {@link #ALL_MONTHS}.
+	 */
+	public static int parseMonth(String monthName) {
+		return MONTH_INDICES.getOrDefault(monthName, -1);
+	}
+	
+	/**
+	 * Parses a time in the format H[H]:MM.
+	 * 
+	 * @param time the time
+	 * @return the number of minutes since midnight.
+	 * @throws NumberFormatException if the time is not in the format H[H]:MM.
+	 */
+	public static int parseMinuteOfDay(String time) {
+		int separator = time.indexOf(':');
+		if (separator == -1) throw new NumberFormatException("Not a time: " + time);
+		
+		return Integer.parseInt(time, 0, separator, 10) * MINUTES_PER_HOUR
+				+ Integer.parseInt(time, separator + 1, time.length(), 10);
+	}
+	
+	/**
+	 * Parses a time slot, with or without a leading zero, e.g., both 8:00 and 08:00.
+	 * 
+	 * @param time the time in the format H[H]:MM
+	 * @return the 0-based index of the slot in {@link #ALL_TIMESLOTS}, or -1 if the
+	 *         time is not the start of a slot.
+	 * @throws NumberFormatException if the time is not in the format H[H]:MM.
+	 */
+	public static int parseTimeSlot(String time) {
+		int minuteOfDay = parseMinuteOfDay(time);
+		for (int i = 0; i < TIMESLOT_MINUTES.length; i++) {
+			if (TIMESLOT_MINUTES[i] == minuteOfDay) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Packs a date and time into the number of minutes since 1 January 1970 00:00,
+	 * in the proleptic Gregorian calendar.
+	 * 
+	 * @param year the year
+	 * @param month the 0-based month
+	 * @param day the day of the month
+	 * @param minuteOfDay the number of minutes since midnight
+	 * @return the packed date and time.
+	 */
+	public static long pack(int year, int month, int day, int minuteOfDay) {
+		return daysFromCivil(year, month + 1, day) * MINUTES_PER_DAY + minuteOfDay;
+	}
+	
+	/**
+	 * Packs the cells of a date and time, without constructing a Date.
+	 * 
+	 * @param day the day of the month, e.g., 4
+	 * @param month the name of the month, e.g., November
+	 * @param year the year, e.g., 2024
+	 * @param time the time in the format H[H]:MM, e.g., 8:00
+	 * @return the packed date and time, see {@link #pack(int, int, int, int)}.
+	 * @throws NumberFormatException if a cell is malformed, or the month is not
+	 *                               one of {@link #ALL_MONTHS}.
+	 */
+	public static long pack(String day, String month, String year, String time) {
+		int monthIndex = parseMonth(month);
+		if (monthIndex == -1) throw new NumberFormatException("Not a month: " + month);
+		
+		return pack(Integer.parseInt(year), monthIndex, Integer.parseInt(day), parseMinuteOfDay(time));
+	}
+	
+	/**
+	 * @param date the day, month, year and time, in the order {@link #Date(List)} reads them.
+	 * @return the packed date and time, see {@link #pack(String, String, String, String)}.
+	 */
+	public static long pack(List<String> date) {
+		return pack(date.get(DAY), date.get(MONTH), date.get(YEAR), date.get(TIME));
+	}
+	
+	/**
+	 * @param epochMinutes a packed date and time
+	 * @return the number of days since 1 January 1970 of the date, i.e., the packed
+	 *         date and time without the time.
+	 */
+	public static long toEpochDay(long epochMinutes) {
+		return Math.floorDiv(epochMinutes, MINUTES_PER_DAY);
+	}
+	
+	/**
+	 * @param epochMinutes a packed date and time
+	 * @return the number of minutes since midnight of the time.
+	 */
+	public static int toMinuteOfDay(long epochMinutes) {
+		return Math.floorMod(epochMinutes, MINUTES_PER_DAY);
+	}
+	
+	/**
+	 * Unpacks a date and time into cells, the inverse of {@link #pack(List)}.
+	 * 
+	 * @param epochMinutes the packed date and time
+	 * @return the day, month, year and time, the time in the format HH:MM.
+	 */
+	public static List<String> unpack(long epochMinutes) {
+		long days = toEpochDay(epochMinutes);
+		int minuteOfDay = toMinuteOfDay(epochMinutes);
+		
+		// civil from days, see daysFromCivil(...)
+		days += 719468;
+		long era = Math.floorDiv(days, 146097);
+		int dayOfEra = (int) (days - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		return Arrays.asList(
+				String.valueOf(day),
+				ALL_MONTHS.get(month - 1),
+				String.valueOf(year),
+				String.format("%02d:%02d", minuteOfDay / MINUTES_PER_HOUR, minuteOfDay % MINUTES_PER_HOUR)
+		);
+	}
+	
+	/**
+	 * Counts the days from 1 January 1970 to a date, in the proleptic Gregorian
+	 * calendar, with years starting on 1 March so that the leap day comes last.
+	 * 
+	 * @param year the year
+	 * @param month the 1-based month
+	 * @param day the day of the month
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		long shiftedYear = month <= 2 ? (long) year - 1 : year;
+		long era = Math.floorDiv(shiftedYear, 400);
+		int yearOfEra = (int) (shiftedYear - era * 400);
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	/**
+	 * @return this date and time, packed, see {@link #pack(int, int, int, int)}.
+	 */
+	public long toEpochMinutes() {
+		return this.epochMinutes;
+	}
 
 	/**
      * Returns the year as a string.
@@ -148,15 +323,7 @@ public class Date implements Comparable<Date> {
      */
 	@Override
 	public int compareTo(Date o) {
-		if (this.year != o.year) return this.year - o.year;
-		
-		if (this.month != o.month) return this.month - o.month;
-		
-		if (this.day != o.day) return this.day - o.day;
-		
-		if (this.hours != o.hours) return this.hours - o.hours;
-		
-		return this.minutes - o.minutes;
+		return Long.compare(this.epochMinutes, o.epochMinutes);
 	}
 	
 	/**
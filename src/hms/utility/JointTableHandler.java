@@ -148,6 +148,19 @@ public class JointTableHandler {
 		}
 	}
 
+	/**
+	 * Sets how the mutations made on all component wide tables reach their files.
+	 * 
+	 * @param mode the new persistence mode
+	 * @throws IOException if an I/O error occurs
+	 * @see CSVHandler#setPersistenceMode(CSVHandler.PersistenceMode)
+	 */
+	public void setPersistenceMode(CSVHandler.PersistenceMode mode) throws IOException {
+		for (WideTableHandler table : this.handlers) {
+			table.setPersistenceMode(mode);
+		}
+	}
+
 	/**
 	 * Checks if an id exists in any component wide table of this joint table.
 	 * 
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -27,11 +28,11 @@ public class PromptFormatter {
 	 * 8 in most IDE consoled, as opposed to 4 in most text editors.
 	 */
 	public static final int TAB_WIDTH = 8;
-	private static Scanner inputScanner;
-	private static Deque<String> workingDirectory;
+	private static Supplier<Scanner> inputScanner;
+	private static Supplier<Deque<String>> workingDirectory;
 	private static PromptFormatter pfInstance = null;
 
-	private PromptFormatter(Scanner in, Deque<String> directoryList) {
+	private PromptFormatter(Supplier<Scanner> in, Supplier<Deque<String>> directoryList) {
 		inputScanner = in;
 		workingDirectory = directoryList;
 	}
@@ -39,11 +40,12 @@ public class PromptFormatter {
 	/**
 	 * Initializes the PromptFormatter.
 	 * 
-	 * @param in the input scanner to be used for all prompting operations within this class.
-	 * @param directoryList the reference to the list containing the current execution directory 
-	 * of the system.
+	 * @param in supplies the input scanner to be used for the prompting operations within this 
+	 * class, as seen from the calling thread.
+	 * @param directoryList supplies the reference to the list containing the current execution 
+	 * directory of the system, as seen from the calling thread.
 	 */
-	public static void PromptFormatterInit(Scanner in, Deque<String> directoryList) {
+	public static void PromptFormatterInit(Supplier<Scanner> in, Supplier<Deque<String>> directoryList) {
 		if (pfInstance == null) {
 			pfInstance = new PromptFormatter(in, directoryList);
 		}
@@ -56,8 +58,8 @@ public class PromptFormatter {
 	 * @return the input given by the user.
 	 */
 	public static String workingDirectoryPrompt() {
-		System.out.print(String.join("/", workingDirectory.reversed()) + "> ");
-		return inputScanner.nextLine();
+		System.out.print(String.join("/", workingDirectory.get().reversed()) + "> ");
+		return inputScanner.get().nextLine();
 	}
 
 	/**
@@ -232,7 +234,7 @@ public class PromptFormatter {
 			while (true) {
 				try {
 					System.out.print("Please enter an index: ");
-					String safeOption = inputScanner.nextLine();
+					String safeOption = inputScanner.get().nextLine();
 					option = Integer.parseInt(safeOption);
 
 					// option = Integer.parseInt(workingDirectoryPrompt());
@@ -483,7 +485,7 @@ public class PromptFormatter {
 						(this.hideEscape ? "" : " (enter " + this.sessionTerminationToken + " to quit)") + 
 						": "
 				);
-				this.input = inputScanner.nextLine();
+				this.input = inputScanner.get().nextLine();
 				
 				if (this.input.equals(this.sessionTerminationToken)) {
 					this.input = null;	// just in case user still have the object handler
@@ -5,7 +5,9 @@ import java.util.*;
 import java.util.HashMap;
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import hms.exception.TableMismatchException;
@@ -27,6 +29,8 @@ public class TableHandler extends CSVHandler {
 	 * This list is ordered.
 	 */
 	public final List<String> ALL_COLUMNS;
+	// the columns of the day, month, year and time of the date and time index, if any
+	private int[] dateTimeColIndices;
 
 	/**
 	 * Constructs a TableHandler object
@@ -37,14 +41,47 @@ public class TableHandler extends CSVHandler {
 	 * @throws IOException
 	 */
 	public TableHandler(String filePath, List<String> orderedVariableName, int idColIndex) throws IOException {
-		super(filePath, idColIndex);
+		this(filePath, orderedVariableName, idColIndex, CSVHandler.STRIP);
+	}
+
+	/**
+	 * Constructs a TableHandler object
+	 * @param filePath the path to the file storing the table
+	 * @param orderedVariableName the ordered list of variable name, as they are specified 
+	 * within the table
+	 * @param idColIndex the index of the column to use as the id.
+	 * @param storageMode CSVHandler.NO_STRIP if the cells must also be kept as they are
+	 * in the file, for reads that specify NO_STRIP; CSVHandler.STRIP otherwise.
+	 * @throws IOException
+	 */
+	public TableHandler(String filePath, List<String> orderedVariableName, int idColIndex, boolean storageMode)
+			throws IOException {
+		this(filePath, orderedVariableName, idColIndex, storageMode, CSVHandler.LoadMode.EAGER);
+	}
+
+	/**
+	 * Constructs a TableHandler object
+	 * @param filePath the path to the file storing the table
+	 * @param orderedVariableName the ordered list of variable name, as they are specified 
+	 * within the table
+	 * @param idColIndex the index of the column to use as the id.
+	 * @param storageMode CSVHandler.NO_STRIP if the cells must also be kept as they are
+	 * in the file, for reads that specify NO_STRIP; CSVHandler.STRIP otherwise.
+	 * @param loadMode CSVHandler.LoadMode.MAPPED to map the file and decode its rows as
+	 * they are accessed; CSVHandler.LoadMode.EAGER to load it whole.
+	 * @throws IOException
+	 */
+	public TableHandler(String filePath, List<String> orderedVariableName, int idColIndex, boolean storageMode,
+			CSVHandler.LoadMode loadMode) throws IOException {
+		super(filePath, idColIndex, storageMode, loadMode);
 		format = new TableFormat(orderedVariableName, idColIndex);
 		this.ALL_COLUMNS = this.format.getVariableNames();
+		this.dateTimeColIndices = null;
 	}
 
 	/**
 	 * Finds the specified id in the table. This invokes the base class function
-	 * findId() which searches through a column specified as argument for the id.
+	 * findId() which looks the id up in the index kept on the id column.
 	 * 
 	 * @param id specified id
 	 * @return the row index of the id if found. -1 otherwise.
@@ -64,6 +101,49 @@ public class TableHandler extends CSVHandler {
 		return findId(id) != -1;
 	}
 
+	/**
+	 * Declares a secondary index on a variable, which maps each of its values to
+	 * the rows holding it. The index is kept up to date on every mutation, and is
+	 * used by {@link TableQuery} for the .where(variableName).matches(...) clauses
+	 * on the variable, which then only visit the matching rows instead of the
+	 * whole table.
+	 * 
+	 * @param variableName the variable to index
+	 * @throws UndefinedVariableException if the variable does not exist.
+	 */
+	public void createIndex(String variableName) throws UndefinedVariableException {
+		super.createIndex(this.format.indexOf(variableName));
+	}
+
+	/**
+	 * Declares a sorted index on the date and time held in four variables, in the
+	 * format read by {@link Date#Date(List)}. The index is kept up to date on every
+	 * mutation, and is what the .between(...) clauses of {@link TableQuery} filter on,
+	 * visiting only the rows in the range instead of the whole table.
+	 * 
+	 * @param dayVariable the variable holding the day of the month
+	 * @param monthVariable the variable holding the name of the month
+	 * @param yearVariable the variable holding the year
+	 * @param timeVariable the variable holding the time, in the format H[H]:MM
+	 * @throws UndefinedVariableException if a variable does not exist.
+	 */
+	public void createDateTimeIndex(String dayVariable, String monthVariable, String yearVariable,
+			String timeVariable) throws UndefinedVariableException {
+		this.writeLock().lock();
+		try {
+			int[] colIndices = new int[] {
+					this.format.indexOf(dayVariable),
+					this.format.indexOf(monthVariable),
+					this.format.indexOf(yearVariable),
+					this.format.indexOf(timeVariable)
+			};
+			super.createDateTimeIndex(colIndices[0], colIndices[1], colIndices[2], colIndices[3]);
+			this.dateTimeColIndices = colIndices;
+		} finally {
+			this.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * Checks whether the supplied variable name exists in the table.
 	 * 
@@ -129,9 +209,15 @@ public class TableHandler extends CSVHandler {
 	 * @throws UndefinedVariableException
 	 */
 	public String readVariable(String id, String variableName, boolean isStrip) throws UndefinedVariableException {
-		if (!isExistentId(id))
-			return null;
-		return super.readVariable(this.findId(id), this.format.indexOf(variableName), isStrip);
+		this.readLock().lock();
+		try {
+			int rowIndex = this.findId(id);
+			if (rowIndex == -1)
+				return null;
+			return super.readVariable(rowIndex, this.format.indexOf(variableName), isStrip);
+		} finally {
+			this.readLock().unlock();
+		}
 	}
 	
 	/**
@@ -159,8 +245,14 @@ public class TableHandler extends CSVHandler {
 	 *         TableHandler.
 	 */
 	public List<String> readRow(String id) {
-		if (!isExistentId(id)) return null;
-		return super.readRow(this.findId(id));
+		this.readLock().lock();
+		try {
+			int rowIndex = this.findId(id);
+			if (rowIndex == -1) return null;
+			return super.readRow(rowIndex);
+		} finally {
+			this.readLock().unlock();
+		}
 	}
 
 	/**
@@ -187,8 +279,14 @@ public class TableHandler extends CSVHandler {
 	 * @throws IOException
 	 */
 	public List<String> removeRow(String id) throws IOException {
-		if (!isExistentId(id)) return null;
-		return super.removeRow(this.findId(id));
+		this.writeLock().lock();
+		try {
+			int rowIndex = this.findId(id);
+			if (rowIndex == -1) return null;
+			return super.removeRow(rowIndex);
+		} finally {
+			this.writeLock().unlock();
+		}
 	}
 	
 	private void checkListMatchesFormat(List<String> list) throws TableMismatchException {
@@ -251,8 +349,13 @@ public class TableHandler extends CSVHandler {
 	 */
 	public void updateVariable(String id, String variableName, String newValue)
 			throws IOException, UndefinedVariableException, UserNotFoundException {
-		checkIsExistentId(id);
-		super.updateVariable(this.findId(id), this.format.indexOf(variableName), newValue);
+		this.writeLock().lock();
+		try {
+			checkIsExistentId(id);
+			super.updateVariable(this.findId(id), this.format.indexOf(variableName), newValue);
+		} finally {
+			this.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -270,10 +373,107 @@ public class TableHandler extends CSVHandler {
 		UndefinedVariableException, 
 		UserNotFoundException 
 	{
-		checkIsExistentId(id);
-		String newCell = String.join(";", newList);
-		newCell = newCell + ";";
-		super.updateVariable(this.findId(id), this.format.indexOf(variableName), newCell);
+		this.writeLock().lock();
+		try {
+			checkIsExistentId(id);
+			String newCell = String.join(";", newList);
+			newCell = newCell + ";";
+			super.updateVariable(this.findId(id), this.format.indexOf(variableName), newCell);
+		} finally {
+			this.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * A row read together with its version stamp, see {@link #readVersionedRow(String)}.
+	 * @param row     the row, as {@link #readRow(String)} reads it
+	 * @param version the version stamp the row had when it was read
+	 */
+	public record VersionedRow(List<String> row, long version) {}
+
+	/**
+	 * Reads a row identified by id, together with its version stamp. The stamp
+	 * changes whenever the row does, so passing it back to
+	 * {@link #compareAndUpdate(String, long, Map)} updates the row only if no one
+	 * else has changed it since it was read.
+	 * @param id string identifier
+	 * @return the row and its version stamp; null if {@code id} does not exist in
+	 *         the table.
+	 */
+	public VersionedRow readVersionedRow(String id) {
+		this.readLock().lock();
+		try {
+			int rowIndex = this.findId(id);
+			if (rowIndex == -1) return null;
+			return new VersionedRow(super.readRow(rowIndex), this.readVersion(rowIndex));
+		} finally {
+			this.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates variables in a row identified by id, provided the row still has the
+	 * version stamp it had when it was read with {@link #readVersionedRow(String)}.
+	 * Either all of the variables are updated or none is, and the update is
+	 * persisted as one batch.
+	 * <br><br>
+	 * Nothing is held between the read and this call, so a caller losing the race
+	 * to another update is told so at once, and may read the row again and retry.
+	 * @param id              string identifier
+	 * @param expectedVersion the version stamp the row is expected to have
+	 * @param newValues       the new values, by variable name
+	 * @return true if the row was updated; false if it does not exist anymore, or
+	 *         has changed since it was read.
+	 * @throws IOException
+	 * @throws UndefinedVariableException
+	 */
+	public boolean compareAndUpdate(String id, long expectedVersion, Map<String, String> newValues)
+			throws IOException, UndefinedVariableException {
+		// every variable name is checked before the first update
+		Map<Integer, String> newCells = new LinkedHashMap<Integer, String>();
+		for (Map.Entry<String, String> newValue : newValues.entrySet()) {
+			newCells.put(this.format.indexOf(newValue.getKey()), newValue.getValue());
+		}
+
+		this.beginBatch();
+		try {
+			int rowIndex = this.findId(id);
+			if (rowIndex == -1 || this.readVersion(rowIndex) != expectedVersion) return false;
+
+			for (Map.Entry<Integer, String> newCell : newCells.entrySet()) {
+				super.updateVariable(rowIndex, newCell.getKey(), newCell.getValue());
+			}
+			return true;
+		} finally {
+			this.commitBatch();
+		}
+	}
+
+	/**
+	 * Adds a row to the table, unless a query on this table finds a row it would
+	 * conflict with. The query and the addition take place under the same write
+	 * lock, so no conflicting row can be added in between by another thread.
+	 * @param rowData   the list of data representing the new row
+	 * @param conflicts a query on this table, not yet executed, that yields the
+	 *                  rows conflicting with the new one
+	 * @return true if the row was added; false if a conflicting row was found.
+	 * @throws IOException
+	 * @throws TableMismatchException
+	 * @throws UndefinedVariableException
+	 */
+	public boolean addRowIfAbsent(List<String> rowData, TableQuery conflicts)
+			throws IOException, TableMismatchException, UndefinedVariableException {
+		if (conflicts.table() != this)
+			throw new IllegalArgumentException("The query is not on " + this.getFilePath());
+
+		this.writeLock().lock();
+		try {
+			if (!TableQuery.isEmptyResult(conflicts.yield())) return false;
+			this.addRow(rowData);
+			return true;
+		} finally {
+			this.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -299,6 +499,20 @@ public class TableHandler extends CSVHandler {
 		return super.getData().iterator();
 	}
 	
+	/**
+	 * A query over the rows of this table, built as a chain of .where(...) clauses
+	 * joined by .and() and .or(), and evaluated by {@link #execute()}.
+	 * <br><br>
+	 * The whole chain is evaluated in a single pass over the rows: the clauses of a
+	 * row are tested from left to right, stopping as soon as the outcome for that
+	 * row is settled, and only the rows that match are projected onto the subjects.
+	 * If a clause after the last .or() is a match on an indexed variable, see
+	 * {@link TableHandler#createIndex(String)}, or a .between(...) clause, only the
+	 * rows the index returns for it are visited, since no other row can match the chain.
+	 * <br><br>
+	 * The results come in table order, unless ordered with .orderBy(...) or
+	 * .orderByDateTime(...), and may be cut down to their first rows with .limit(...).
+	 */
 	public class TableQuery {
 		/**
 		 * Provided for the consumers of this feature to test whether a String matches any
@@ -318,8 +532,114 @@ public class TableHandler extends CSVHandler {
 		private List<String> subjects;
 		private String operand;
 		private Predicate<String> operation;
+		private String matchValue;
+		private Predicate<String> matchOperation;
+		private long[] range;
+		private final List<Clause> clauses;
+		private boolean isNextConjunction;
+		private Ordering<?> ordering;
+		private int limit;
 		private Set<List<String>> results;
-		private Function<Set<List<String>>, Boolean> resultMerger;
+		
+		/**
+		 * A .where(...) clause that was given its operation, or a .between(...) clause.
+		 */
+		private static class Clause {
+			private final Predicate<List<String>> test;
+			// finds the rows that may pass the test in an index; null, or yields null, if there is none
+			private final Supplier<int[]> lookup;
+			// how the clause is merged with the ones before it
+			private final boolean isConjunction;
+			
+			private Clause(Predicate<List<String>> test, Supplier<int[]> lookup, boolean isConjunction) {
+				this.test = test;
+				this.lookup = lookup;
+				this.isConjunction = isConjunction;
+			}
+		}
+		
+		/**
+		 * The order of the query results, by a sort key computed once for every
+		 * matching row. Ties are kept in table order.
+		 * @param <K> the type of the sort key
+		 */
+		private static class Ordering<K> {
+			private final Function<List<String>, K> keyOf;
+			private final Comparator<Entry<K>> entryOrder;
+			private List<Entry<K>> entries;
+			private PriorityQueue<Entry<K>> heap;
+			// the entries in the heap, by their rows, so that no row is kept twice
+			private Map<List<String>, Entry<K>> heapEntries;
+			private int limit;
+			private int sequence;
+			
+			private static class Entry<K> {
+				private final K key;
+				// the position of the row among the matches, for ties
+				private final int sequence;
+				private final List<String> resultRow;
+				
+				private Entry(K key, int sequence, List<String> resultRow) {
+					this.key = key;
+					this.sequence = sequence;
+					this.resultRow = resultRow;
+				}
+			}
+			
+			private Ordering(Function<List<String>, K> keyOf, Comparator<? super K> keyOrder) {
+				this.keyOf = keyOf;
+				this.entryOrder = Comparator.<Entry<K>, K>comparing(e -> e.key, keyOrder)
+						.thenComparingInt(e -> e.sequence);
+			}
+			
+			/**
+			 * Discards the rows of a previous execution.
+			 * @param limit the number of rows to keep
+			 */
+			private void reset(int limit) {
+				this.limit = limit;
+				this.sequence = 0;
+				this.entries = new ArrayList<Entry<K>>();
+				// the root of the heap is the last of the rows kept so far
+				this.heap = limit < Integer.MAX_VALUE ? new PriorityQueue<Entry<K>>(this.entryOrder.reversed()) : null;
+				this.heapEntries = new HashMap<List<String>, Entry<K>>();
+			}
+			
+			/**
+			 * Keeps a row, if it is among the first n so far. A row that is already in
+			 * the heap stays there once, at the earlier of its two places.
+			 * @param tableRow the full row, which the sort key is computed from
+			 * @param resultRow the row as it appears in the results
+			 */
+			private void offer(List<String> tableRow, List<String> resultRow) {
+				Entry<K> entry = new Entry<K>(this.keyOf.apply(tableRow), this.sequence++, resultRow);
+				if (this.heap == null) {
+					this.entries.add(entry);
+					return;
+				}
+				
+				Entry<K> kept = this.heapEntries.get(resultRow);
+				if (kept != null) {
+					if (this.entryOrder.compare(entry, kept) >= 0) return;
+					this.heap.remove(kept);
+				} else if (this.heap.size() >= this.limit) {
+					if (this.limit == 0 || this.entryOrder.compare(entry, this.heap.peek()) >= 0) return;
+					this.heapEntries.remove(this.heap.poll().resultRow);
+				}
+				this.heap.add(entry);
+				this.heapEntries.put(resultRow, entry);
+			}
+			
+			/**
+			 * @return the rows kept, in order. Rows kept more than once, which only
+			 *         happens without a limit, are left for the caller to drop.
+			 */
+			private List<List<String>> getSorted() {
+				List<Entry<K>> sorted = this.heap == null ? this.entries : new ArrayList<Entry<K>>(this.heap);
+				sorted.sort(this.entryOrder);
+				return sorted.stream().map(e -> e.resultRow).toList();
+			}
+		}
 		
 		/**
 		 * Constructs a query object associated with this table, providing basic 
@@ -332,8 +652,11 @@ public class TableHandler extends CSVHandler {
 		 */
 		public TableQuery(List<String> subjects) {
 			this.subjects = new ArrayList<String>();
-			this.results = new HashSet<List<String>>();
-			this.resultMerger = null;
+			this.clauses = new ArrayList<Clause>();
+			this.isNextConjunction = false;
+			this.ordering = null;
+			this.limit = Integer.MAX_VALUE;
+			this.results = new LinkedHashSet<List<String>>();
 			
 			if (subjects == null || subjects.isEmpty()) {
 				// default to retrieving id if subjects is null
@@ -368,9 +691,44 @@ public class TableHandler extends CSVHandler {
 			this.checkVariableName(variableName);
 			
 			this.operand = variableName;
+			this.range = null;
+			return this;
+		}
+		
+		/**
+		 * A clause of its own, in place of a .where(...) clause and its operation, that
+		 * tests whether the date and time of a row lies in a range. The date and time is
+		 * that of the index declared with {@link TableHandler#createDateTimeIndex(String,
+		 * String, String, String)}, which the clause looks the rows up in. Rows that do
+		 * not hold a valid date and time do not match.
+		 * 
+		 * @param fromEpochMinutes the start of the range, inclusive, see {@link Date#pack(int, int, int, int)}
+		 * @param toEpochMinutes the end of the range, exclusive
+		 * @return this TableQuery object for operation chaining.
+		 * @throws TableQueryException if the table has no date and time index.
+		 */
+		public TableQuery between(long fromEpochMinutes, long toEpochMinutes) throws TableQueryException {
+			if (TableHandler.this.dateTimeColIndices == null) throw new TableQueryException(
+					"Undefined date and time: " + TableHandler.this.getFilePath() + " has no date and time index"
+			);
+			
+			this.operand = null;
+			this.operation = null;
+			this.range = new long[] { fromEpochMinutes, toEpochMinutes };
 			return this;
 		}
 		
+		/**
+		 * @see #between(long, long)
+		 * @param from the start of the range, inclusive
+		 * @param to the end of the range, exclusive
+		 * @return this TableQuery object for operation chaining.
+		 * @throws TableQueryException if the table has no date and time index.
+		 */
+		public TableQuery between(Date from, Date to) throws TableQueryException {
+			return this.between(from.toEpochMinutes(), to.toEpochMinutes());
+		}
+		
 		/**
 		 * Specifies the target value of the .where(...) clause it follows. Sets the 
 		 * predicate ready for scanning through the table.
@@ -381,6 +739,9 @@ public class TableHandler extends CSVHandler {
 		public <U> TableQuery matches(U value) {
 			if (Integer.class.isInstance(value)) return this.equals((Integer)value);
 			this.operation = s -> value.getClass().isInstance(s) ? (value.getClass().cast(s)).equals(value) : false;
+			// only a String can be found in an index
+			this.matchValue = value instanceof String ? (String) value : null;
+			this.matchOperation = this.operation;
 			return this;
 		}
 		
@@ -397,15 +758,18 @@ public class TableHandler extends CSVHandler {
 			return this;
 		}
 		
-		private static int toIntNoThrow(String number) {
-			try {
-				return Integer.parseInt(number);
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
-				System.exit(-1); 		// exit with error instead of throwing exception
-			}
-			
-			return -1;
+		/**
+		 * Lifts a test on ints to the cells of a column; cells that are not ints do
+		 * not pass it.
+		 */
+		private static Predicate<String> testInt(IntPredicate test) {
+			return n -> {
+				try {
+					return test.test(Integer.parseInt(n));
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			};
 		}
 		
 		/**
@@ -416,7 +780,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery greaterThan(Integer i) {
-			this.operation = n -> toIntNoThrow(n) > i;
+			this.operation = testInt(n -> n > i);
 			return this;
 		}
 		
@@ -428,7 +792,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery greaterThanOrEquals(Integer i) {
-			this.operation = n -> toIntNoThrow(n) >= i;
+			this.operation = testInt(n -> n >= i);
 			return this;
 		}
 		
@@ -440,7 +804,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery lessThan(Integer i) {
-			this.operation = n -> toIntNoThrow(n) < i;
+			this.operation = testInt(n -> n < i);
 			return this;
 		}
 		
@@ -452,7 +816,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery lessThanOrEquals(Integer i) {
-			this.operation = n -> toIntNoThrow(n) <= i;
+			this.operation = testInt(n -> n <= i);
 			return this;
 		}
 		
@@ -464,7 +828,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery equals(Integer i) {
-			this.operation = n -> toIntNoThrow(n) == i.intValue();
+			this.operation = testInt(n -> n == i.intValue());
 			return this;
 		}
 		
@@ -476,7 +840,7 @@ public class TableHandler extends CSVHandler {
 		 * @return this TableQuery object for operation chaining.
 		 */
 		public TableQuery doesNotEqual(Integer i) {
-			this.operation = n -> toIntNoThrow(n) != i.intValue();
+			this.operation = testInt(n -> n != i.intValue());
 			return this;
 		}
 		
@@ -501,16 +865,6 @@ public class TableHandler extends CSVHandler {
 			return operationMap.get(token);
 		}
 		
-		private String getFromListNoThrow(List<String> row, String variableName) {
-			try {
-				return TableHandler.this.getFromList(row, variableName);
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.exit(-1);
-			}
-			return null;
-		}
-		
 		/**
 		 * Executes and yields the sub-table that matches the whole query chain as a final result.
 		 * 
@@ -522,51 +876,148 @@ public class TableHandler extends CSVHandler {
 			this.execute();
 			return new ArrayList<List<String>>(this.results);
 		}
+
+		/**
+		 * @return the table this query is on.
+		 */
+		private TableHandler table() {
+			return TableHandler.this;
+		}
+		
+		/**
+		 * Closes the pending .where(...) clause, if it was given an operation, and
+		 * appends it to the chain.
+		 */
+		private void addPendingClause() throws UndefinedVariableException {
+			if (this.operand != null && this.operation != null) {
+				int colIndex = TableHandler.this.format.indexOf(this.operand);
+				Predicate<String> operation = this.operation;
+				// the clause may have been given another operation since .matches(...)
+				String matchValue = this.operation == this.matchOperation ? this.matchValue : null;
+				this.clauses.add(new Clause(
+						row -> operation.test(row.get(colIndex)),
+						matchValue == null ? null : () -> TableHandler.this.findRows(matchValue, colIndex),
+						this.isNextConjunction
+				));
+			} else if (this.range != null) {
+				long from = this.range[0];
+				long to = this.range[1];
+				int[] colIndices = TableHandler.this.dateTimeColIndices;
+				this.clauses.add(new Clause(
+						row -> {
+							try {
+								long dateTime = Date.pack(row.get(colIndices[0]), row.get(colIndices[1]),
+										row.get(colIndices[2]), row.get(colIndices[3]));
+								return dateTime >= from && dateTime < to;
+							} catch (NumberFormatException e) {
+								return false;
+							}
+						},
+						() -> TableHandler.this.findRowsBetween(from, to),
+						this.isNextConjunction
+				));
+			}
+			
+			// prevents repeated trigger of the same clause
+			this.operand = null;
+			this.operation = null;
+			this.matchValue = null;
+			this.matchOperation = null;
+			this.range = null;
+			// defaults to union
+			this.isNextConjunction = false;
+		}
 		
 		/**
-		 * Constructs a sub-table containing all the required columns whose rows match the criterion
-		 * provided in the preceding .where(...) clause. This sub-table is then merged with the current
-		 * query result using either intersection or union as defined by the most recent call to .or()
-		 * or .and(). If no such merging operation was defined for this step, the merge defaults to
-		 * set union.
+		 * Finds the smallest set of rows that contains every row matching the chain, by
+		 * looking up the .matches(...) and .between(...) clauses after the last .or() in 
+		 * their index.
+		 * 
+		 * @return the 0-based indices of the rows, ascending; null if the whole table
+		 *         has to be scanned.
+		 */
+		private int[] findCandidateRows() {
+			int firstRequired = 0;
+			for (int i = 1; i < this.clauses.size(); i++) {
+				if (!this.clauses.get(i).isConjunction) firstRequired = i + 1;
+			}
+			
+			int[] candidates = null;
+			for (Clause clause : this.clauses.subList(firstRequired, this.clauses.size())) {
+				int[] rows = clause.lookup == null ? null : clause.lookup.get();
+				if (rows != null && (candidates == null || rows.length < candidates.length)) candidates = rows;
+			}
+			return candidates;
+		}
+		
+		private boolean matchesChain(List<String> row) {
+			boolean isMatch = false;
+			for (int i = 0; i < this.clauses.size(); i++) {
+				Clause clause = this.clauses.get(i);
+				// the outcome is already settled: false AND anything, or true OR anything
+				if (i > 0 && clause.isConjunction != isMatch) continue;
+				
+				isMatch = clause.test.test(row);
+			}
+			return isMatch;
+		}
+		
+		/**
+		 * Evaluates the query chain formed so far, closing the preceding .where(...) clause,
+		 * and keeps the sub-table of the matching rows, projected onto the required columns,
+		 * as the query result. Clauses are merged strictly left-to-right, with the operation
+		 * defined by the .or() or .and() call before them. If no such merging operation was
+		 * defined for a clause, the merge defaults to set union. The table is read-locked for
+		 * the whole evaluation, so the result reflects a single state of the table.
 		 * 
 		 * @return this query object for operation chaining.
 		 * @throws TableMismatchException
 		 * @throws UndefinedVariableException
 		 */
 		public TableQuery execute() throws TableMismatchException, UndefinedVariableException {
-			Set<List<String>> partialResults = new HashSet<List<String>>();
-			Iterator<List<String>> tableRows = getRows();
+			TableHandler.this.readLock().lock();
+			try {
+				this.addPendingClause();
+				this.results.clear();
+				if (this.clauses.isEmpty()) return this;
 			
-			if (tableRows.hasNext()) tableRows.next();
+				int[] subjectIndices = new int[this.subjects.size()];
+				for (int i = 0; i < subjectIndices.length; i++) {
+					subjectIndices[i] = TableHandler.this.format.indexOf(this.subjects.get(i));
+				}
+			
+				if (this.ordering != null) this.ordering.reset(this.limit);
 			
-			while (tableRows.hasNext()) {
-				List<String> tableRow = tableRows.next();
-				String tableValue = TableHandler.this.getFromList(tableRow, this.operand);
+				int[] candidates = this.findCandidateRows();
+				int candidateCount = candidates != null ? candidates.length : TableHandler.this.getRowCount() - 1;
+				for (int i = 0; i < candidateCount; i++) {
+					// without an order, the first matches are the results
+					if (this.ordering == null && this.results.size() >= this.limit) break;
+				
+					// skip the header when scanning
+					List<String> tableRow = TableHandler.this.readRowView(candidates != null ? candidates[i] : i + 1);
+					TableHandler.this.checkListMatchesFormat(tableRow);
+					if (!this.matchesChain(tableRow)) continue;
 				
-				if (operation.test(tableValue)) {
-					partialResults.add(
-							this.subjects
-								.stream()
-								.map(n -> this.getFromListNoThrow(tableRow, n))
-								.toList()
-					);
+					List<String> projectedRow = new ArrayList<String>(subjectIndices.length);
+					for (int subjectIndex : subjectIndices) {
+						projectedRow.add(tableRow.get(subjectIndex));
+					}
+					List<String> resultRow = Collections.unmodifiableList(projectedRow);
+					// with an order, only the rows the ordering keeps are held during the scan
+					if (this.ordering != null) {
+						this.ordering.offer(tableRow, resultRow);
+					} else {
+						this.results.add(resultRow);
+					}
 				}
-			}
-			
-			// prevents repeated trigger of execute()
-			this.operand = null;
-			this.operation = null;
 			
-			if (this.resultMerger != null) {
-				this.resultMerger.apply(partialResults);
-				this.resultMerger = null;
+				// the results drop the repeats of a row, keeping its first place
+				if (this.ordering != null) this.results.addAll(this.ordering.getSorted());
 				return this;
+			} finally {
+				TableHandler.this.readLock().unlock();
 			}
-			
-			// defaults to union
-			this.results.addAll(partialResults);
-			return this;
 		}
 		
 		/**
@@ -585,8 +1036,8 @@ public class TableHandler extends CSVHandler {
 		 * @throws UndefinedVariableException
 		 */
 		public TableQuery and() throws TableMismatchException, UndefinedVariableException {
-			this.execute();
-			this.resultMerger = results::retainAll;
+			this.addPendingClause();
+			this.isNextConjunction = true;
 			return this;
 		}
 		
@@ -607,8 +1058,86 @@ public class TableHandler extends CSVHandler {
 		 * @throws UndefinedVariableException
 		 */
 		public TableQuery or() throws TableMismatchException, UndefinedVariableException {
-			this.execute();
-			this.resultMerger = results::addAll;
+			this.addPendingClause();
+			this.isNextConjunction = false;
+			return this;
+		}
+		
+		/**
+		 * Orders the query results by the values of some variables, compared as strings,
+		 * the first variable first. Rows that compare equal are kept in table order. Replaces
+		 * any order set before.
+		 * 
+		 * @param variableNames the variables to order by; they need not be subjects of the query
+		 * @return this query object for operation chaining
+		 * @throws TableQueryException
+		 * @throws UndefinedVariableException
+		 */
+		public TableQuery orderBy(String... variableNames) throws TableQueryException, UndefinedVariableException {
+			int[] colIndices = new int[variableNames.length];
+			for (int i = 0; i < variableNames.length; i++) {
+				this.checkVariableName(variableNames[i]);
+				colIndices[i] = TableHandler.this.format.indexOf(variableNames[i]);
+			}
+			
+			this.ordering = new Ordering<String[]>(
+					row -> Arrays.stream(colIndices).mapToObj(row::get).toArray(String[]::new),
+					Arrays::compare
+			);
+			return this;
+		}
+		
+		/**
+		 * Orders the query results chronologically, by the date and time held in four
+		 * variables, as packed by {@link Date#pack(String, String, String, String)}. Rows 
+		 * that compare equal are kept in table order, and rows that do not hold a valid
+		 * date and time come last. Replaces any order set before.
+		 * 
+		 * @param dayVariable the variable holding the day of the month
+		 * @param monthVariable the variable holding the name of the month
+		 * @param yearVariable the variable holding the year
+		 * @param timeVariable the variable holding the time, in the format HH:MM
+		 * @return this query object for operation chaining
+		 * @throws TableQueryException
+		 * @throws UndefinedVariableException
+		 */
+		public TableQuery orderByDateTime(String dayVariable, String monthVariable, String yearVariable,
+				String timeVariable) throws TableQueryException, UndefinedVariableException {
+			List<String> variableNames = Arrays.asList(dayVariable, monthVariable, yearVariable, timeVariable);
+			int[] colIndices = new int[variableNames.size()];
+			for (int i = 0; i < colIndices.length; i++) {
+				this.checkVariableName(variableNames.get(i));
+				colIndices[i] = TableHandler.this.format.indexOf(variableNames.get(i));
+			}
+			
+			this.ordering = new Ordering<Long>(
+					row -> {
+						try {
+							return Date.pack(row.get(colIndices[0]), row.get(colIndices[1]), row.get(colIndices[2]),
+									row.get(colIndices[3]));
+						} catch (NumberFormatException e) {
+							// no key, sorted after all the rows that have one
+							return null;
+						}
+					},
+					Comparator.nullsLast(Long::compare)
+			);
+			return this;
+		}
+		
+		/**
+		 * Keeps at most the first n rows of the query results, in the order set by
+		 * .orderBy(...) or .orderByDateTime(...), or in table order if none was set.
+		 * With an order, only the n first rows seen so far are held during the scan.
+		 * 
+		 * @param n the maximum number of rows
+		 * @return this query object for operation chaining
+		 * @throws TableQueryException if n is negative
+		 */
+		public TableQuery limit(int n) throws TableQueryException {
+			if (n < 0) throw new TableQueryException("Negative limit: " + n);
+			
+			this.limit = n;
 			return this;
 		}
 		
@@ -0,0 +1,217 @@
+package hms.utility;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log (WAL) of the mutations made on a table. Each
+ * record is one CSV row, holding the cells of the record followed by a checksum
+ * of those cells, so that a record torn by a crash in the middle of an append
+ * is recognised and discarded on replay, together with anything after it.
+ * Records appended together with {@link #appendAll(List)} are enclosed in a
+ * group, which is only replayed if it was written out completely. Whatever
+ * follows the last intact record on replay is cut off before the next append,
+ * so that the records appended after a crash are not lost behind it.
+ * <br><br>
+ * This class only stores and retrieves records; their meaning is defined by
+ * {@link CSVHandler}, which replays them on startup.
+ */
+class TableJournal implements AutoCloseable {
+	private final String journalPath;
+	private FileOutputStream stream;
+	private BufferedWriter writer;
+	private int recordCount;
+	// the length the file is cut down to before the next append; -1 if it is intact
+	private long truncationLength;
+	private CSVHandler.Durability durability;
+
+	private static final String GROUP_BEGIN = "B";
+	private static final String GROUP_COMMIT = "C";
+
+	/**
+	 * Opens the journal associated with a table file. The journal itself is only
+	 * created on the first append.
+	 * @param tableFilePath the path of the table file
+	 */
+	TableJournal(String tableFilePath) {
+		this.journalPath = tableFilePath + ".wal";
+		this.stream = null;
+		this.writer = null;
+		this.recordCount = 0;
+		this.truncationLength = -1;
+		this.durability = CSVHandler.Durability.FLUSH;
+	}
+
+	/**
+	 * Sets how far every append must have reached before it returns.
+	 * @param durability the new durability level
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	void setDurability(CSVHandler.Durability durability) throws IOException {
+		this.durability = durability;
+		// push out what a weaker level may have left behind
+		if (writer != null) this.sync();
+	}
+
+	private void sync() throws IOException {
+		if (durability == CSVHandler.Durability.NONE) return;
+
+		writer.flush();
+		if (durability == CSVHandler.Durability.FSYNC) stream.getChannel().force(false);
+	}
+
+	private static String checksum(String line) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			crc.update(c >>> 8);
+			crc.update(c);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Reads all intact records from the journal, in the order they were appended.
+	 * Anything after the last of them, be it a torn record or an unterminated group,
+	 * is cut off on the next append.
+	 * @return the records, empty if the journal does not exist.
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	List<String[]> readAll() throws IOException {
+		List<String[]> records = new ArrayList<String[]>();
+		if (!new File(journalPath).exists()) return records;
+		List<String[]> group = null;
+		int count = 0;
+		int intactCount = 0;
+		long intactLength = 0;
+
+		// read as bytes, so that the offset of each record is known; a cell holding
+		// a line break is quoted, so a record may span several lines
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(journalPath)));
+		try (CSVTokenizer tokenizer = new CSVTokenizer(bytes)) {
+			while (true) {
+				String[] cells;
+				try {
+					cells = tokenizer.nextRow();
+				} catch (EOFException e) {
+					// torn inside a quoted cell
+					break;
+				}
+				if (cells == null) break;
+
+				// torn record, nothing after it can be trusted
+				if (cells.length < 2) break;
+				String[] record = Arrays.copyOf(cells, cells.length - 1);
+				if (!checksum(CSVTokenizer.join(record)).equals(cells[cells.length - 1])) break;
+				// nor is one whose line break never made it, the next append would run into it
+				if (bytes.get(bytes.position() - 1) != '\n') break;
+
+				count++;
+				switch (record[0]) {
+					case GROUP_BEGIN -> group = new ArrayList<String[]>();
+					case GROUP_COMMIT -> {
+						if (group != null) records.addAll(group);
+						group = null;
+					}
+					default -> (group != null ? group : records).add(record);
+				}
+				// an unterminated group is dropped, together with what follows it
+				if (group == null) {
+					intactCount = count;
+					intactLength = bytes.position();
+				}
+			}
+		}
+
+		this.recordCount = intactCount;
+		this.truncationLength = intactLength < bytes.limit() ? intactLength : -1;
+		return records;
+	}
+
+	/**
+	 * Appends a record, pushing it as far as the durability level requires.
+	 * @param record the cells of the record
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	void append(String... record) throws IOException {
+		this.write(record);
+		this.sync();
+	}
+
+	/**
+	 * Appends a group of records, which is either replayed as a whole or not at
+	 * all, pushing it as far as the durability level requires at once.
+	 * @param records the records, none of which may be a group delimiter
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	void appendAll(List<String[]> records) throws IOException {
+		if (records.isEmpty()) return;
+		if (records.size() == 1) {
+			this.append(records.get(0));
+			return;
+		}
+
+		this.write(GROUP_BEGIN);
+		for (String[] record : records) {
+			this.write(record);
+		}
+		this.write(GROUP_COMMIT);
+		this.sync();
+	}
+
+	private void write(String... record) throws IOException {
+		if (writer == null) {
+			stream = new FileOutputStream(journalPath, true);
+			if (truncationLength != -1) {
+				stream.getChannel().truncate(truncationLength);
+				if (durability == CSVHandler.Durability.FSYNC) stream.getChannel().force(true);
+				truncationLength = -1;
+			}
+			writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		}
+
+		String line = CSVTokenizer.join(record);
+		writer.write(line + "," + checksum(line));
+		writer.newLine();
+		recordCount++;
+	}
+
+	/**
+	 * @return the number of records in the journal
+	 */
+	int size() {
+		return this.recordCount;
+	}
+
+	/**
+	 * Discards all records, after they have been applied to the table file.
+	 * @throws IOException see link for reasons this exception maybe thrown.
+	 */
+	void clear() throws IOException {
+		this.close();
+		new File(journalPath).delete();
+		this.recordCount = 0;
+		this.truncationLength = -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writer == null) return;
+
+		writer.close();
+		writer = null;
+		stream = null;
+	}
+}
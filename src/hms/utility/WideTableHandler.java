@@ -75,7 +75,7 @@ public class WideTableHandler extends CSVHandler {
 	
 	/**
 	 * Finds the specified id in the table. This invokes the base class function
-	 * findId() which searches through a column specified as argument for the id.
+	 * findId() which looks the id up in the index kept on the id column.
 	 * 
 	 * @param id specified id
 	 * @return the row index of the id if found. -1 otherwise.
@@ -86,7 +86,7 @@ public class WideTableHandler extends CSVHandler {
 	
 	/**
 	 * Finds if specified id exists in the table. This invokes the base class function
-	 * findId() which searches through a column specified as argument for the id.
+	 * findId() which looks the id up in the index kept on the id column.
 	 * 
 	 * @param id specified id
 	 * @return true if ID exists in the table, false if the ID does not exist
@@ -101,7 +101,12 @@ public class WideTableHandler extends CSVHandler {
 	 * @param id specified id, newValue is the value required to add
 	 */
 	public void addValue(String id, String newValue) throws IOException {
-		super.addValue(this.findId(id), newValue);
+		this.writeLock().lock();
+		try {
+			super.addValue(this.findId(id), newValue);
+		} finally {
+			this.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -112,10 +117,15 @@ public class WideTableHandler extends CSVHandler {
 	 * @exception UndefinedVariableException if the user ID or variable is undefined
 	 */
 	public String removeValue(String id, int valueIndex) throws IOException, UndefinedVariableException {
+		this.writeLock().lock();
 		try {
-			return super.removeValue(this.findId(id), valueIndex + 1);
-		} catch (IndexOutOfBoundsException e) {
-			throw new IndexOutOfBoundsException("Invalid valueIndex (direct cause to " + e.getMessage() + ")");
+			try {
+				return super.removeValue(this.findId(id), valueIndex + 1);
+			} catch (IndexOutOfBoundsException e) {
+				throw new IndexOutOfBoundsException("Invalid valueIndex (direct cause to " + e.getMessage() + ")");
+			}
+		} finally {
+			this.writeLock().unlock();
 		}
 	}
 
@@ -129,8 +139,13 @@ public class WideTableHandler extends CSVHandler {
 	 * @throws IOException
 	 */
 	public void addRow(String id) throws IOException {
-		if (!this.isExistentId(id))
-			this.writeNewRow(Arrays.asList(id));
+		this.writeLock().lock();
+		try {
+			if (!this.isExistentId(id))
+				this.writeNewRow(Arrays.asList(id));
+		} finally {
+			this.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -139,7 +154,12 @@ public class WideTableHandler extends CSVHandler {
 	 * @return
 	 */
 	public List<String> readRow(String id) {
-		return super.readRow(this.findId(id));
+		this.readLock().lock();
+		try {
+			return super.readRow(this.findId(id));
+		} finally {
+			this.readLock().unlock();
+		}
 	}
 
 	/**
@@ -153,12 +173,17 @@ public class WideTableHandler extends CSVHandler {
 		IOException, 
 		UndefinedVariableException 
 	{
+		this.writeLock().lock();
 		try {
-			super.updateValue(this.findId(id), valueIndex + 1, newValue);
-		} catch (IndexOutOfBoundsException e) {
-			throw new UndefinedVariableException(
-					"Invalid valueIndex (direct cause to " + e.getMessage() + ")"
-			);
+			try {
+				super.updateValue(this.findId(id), valueIndex + 1, newValue);
+			} catch (IndexOutOfBoundsException e) {
+				throw new UndefinedVariableException(
+						"Invalid valueIndex (direct cause to " + e.getMessage() + ")"
+				);
+			}
+		} finally {
+			this.writeLock().unlock();
 		}
 	}
 
@@ -0,0 +1,160 @@
+package hms.utility;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kills a process in the middle of writing a table, and checks that the table
+ * it leaves behind opens to one whole generation of its content.
+ * <br><br>
+ * A writer process rewrites every row of a table to the next generation in one
+ * batch, over and over, and reports each generation once its commit returns.
+ * The writer is killed at a random moment, and the table is opened again: every
+ * row must hold the same generation, no older than the last one reported. In
+ * the journal mode, the journal left behind is also cut at random byte offsets,
+ * as a crash of the machine may leave it, and each cut must open to a whole
+ * generation as well.
+ * <br><br>
+ * Run with {@code java -cp <out> hms.utility.CSVHandlerCrashTest [kills per mode]};
+ * exits with status 1 if any check fails.
+ */
+public class CSVHandlerCrashTest {
+	private static final List<String> FORMAT = List.of("ID", "Generation", "Note");
+	private static final int ROWS = 200;
+	private static final int CUTS_PER_KILL = 20;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals("writer")) {
+			write(args[1], CSVHandler.PersistenceMode.valueOf(args[2]));
+			return;
+		}
+
+		int kills = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		List<String> failures = new ArrayList<String>();
+		for (CSVHandler.PersistenceMode mode : CSVHandler.PersistenceMode.values()) {
+			for (int i = 0; i < kills; i++) {
+				failures.addAll(killWriter(mode));
+			}
+		}
+
+		failures.forEach(System.out::println);
+		System.out.println(failures.isEmpty() ? "PASSED" : "FAILED (" + failures.size() + " checks)");
+		if (!failures.isEmpty()) System.exit(1);
+	}
+
+	/**
+	 * The writer process: rewrites every row to the next generation, one batch
+	 * per generation, until it is killed.
+	 */
+	private static void write(String filePath, CSVHandler.PersistenceMode mode) throws Exception {
+		TableHandler table = new TableHandler(filePath, FORMAT, 0);
+		table.setPersistenceMode(mode);
+		for (int generation = 1; ; generation++) {
+			table.beginBatch();
+			try {
+				for (int i = 0; i < ROWS; i++) {
+					table.updateVariable(String.valueOf(i), "Generation", String.valueOf(generation));
+					// a cell with a comma is quoted, so a cut may land inside quotes
+					table.updateVariable(String.valueOf(i), "Note", "gen " + generation + ", row " + i);
+				}
+			} finally {
+				table.commitBatch();
+			}
+			System.out.println(generation);
+		}
+	}
+
+	private static List<String> killWriter(CSVHandler.PersistenceMode mode) throws Exception {
+		List<String> failures = new ArrayList<String>();
+		Path directory = Files.createTempDirectory("hms-crash");
+		Path file = directory.resolve("crash.csv");
+		StringBuilder content = new StringBuilder(String.join(",", FORMAT)).append('\n');
+		for (int i = 0; i < ROWS; i++) {
+			content.append(i).append(",0,\"gen 0, row ").append(i).append("\"\n");
+		}
+		Files.writeString(file, content);
+
+		Process writer = new ProcessBuilder(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"),
+				CSVHandlerCrashTest.class.getName(), "writer", file.toString(), mode.name()
+		).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+		// the last generation whose commit had returned before the kill
+		AtomicInteger reported = new AtomicInteger();
+		Thread reader = Thread.ofPlatform().start(() -> {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(writer.getInputStream()))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					reported.set(Integer.parseInt(line));
+				}
+			} catch (Exception e) {
+				// the pipe breaks when the writer is killed
+			}
+		});
+
+		while (reported.get() == 0 && writer.isAlive()) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(ThreadLocalRandom.current().nextInt(1, 300));
+		int reportedBeforeKill = reported.get();
+		writer.destroyForcibly().waitFor();
+		reader.join();
+
+		// kept aside, since closing the table compacts the journal into the file
+		Path journal = Path.of(file + ".wal");
+		byte[] journalBytes = Files.exists(journal) ? Files.readAllBytes(journal) : new byte[0];
+		byte[] tableBytes = Files.readAllBytes(file);
+
+		String killed = mode + " after generation " + reportedBeforeKill;
+		System.out.printf("%s, %d bytes of journal left%n", killed, journalBytes.length);
+		checkTable(killed, file, reportedBeforeKill, failures);
+
+		for (int i = 0; i < CUTS_PER_KILL && journalBytes.length > 0; i++) {
+			int offset = ThreadLocalRandom.current().nextInt(journalBytes.length);
+			Files.write(file, tableBytes);
+			Files.write(journal, Arrays.copyOf(journalBytes, offset));
+			checkTable(killed + ", journal cut at " + offset, file, 0, failures);
+		}
+
+		try (var paths = Files.walk(directory)) {
+			paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+		}
+		return failures;
+	}
+
+	private static void checkTable(String scenario, Path file, int minimumGeneration, List<String> failures) {
+		try {
+			TableHandler table = new TableHandler(file.toString(), FORMAT, 0);
+			// the first row of the data is the header
+			List<List<String>> rows = table.getData();
+			table.close();
+
+			if (rows.size() != ROWS + 1) {
+				failures.add(scenario + ": " + (rows.size() - 1) + " rows");
+				return;
+			}
+
+			String generation = rows.get(1).get(1);
+			for (List<String> row : rows.subList(1, rows.size())) {
+				String expectedNote = "gen " + generation + ", row " + row.get(0);
+				if (!row.get(1).equals(generation) || !row.get(2).equals(expectedNote)) {
+					failures.add(scenario + ": mixed generations, row " + row + " in generation " + generation);
+					return;
+				}
+			}
+			if (Integer.parseInt(generation) < minimumGeneration) {
+				failures.add(scenario + ": generation " + generation + " lost, " + minimumGeneration + " was committed");
+			}
+		} catch (Exception e) {
+			failures.add(scenario + ": cannot be opened: " + e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package hms.utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the time it takes to load a large table with {@link CSVTokenizer},
+ * from a reader and from a mapped file, against the {@code BufferedReader} and
+ * {@code String.split(",")} loop that the tables used to be loaded with.
+ * <br><br>
+ * The generated file has rows shaped like those of patientAppointments.csv,
+ * without quotes or trailing empty cells, so that both loaders read the same
+ * cells; the benchmark checks that they do. Each loader runs a few rounds to
+ * warm up before the measured ones, and the best and median round are printed.
+ * <br><br>
+ * Run with {@code java -Xmx4g -cp <out> hms.utility.CSVTokenizerBenchmark [rows] [rounds]};
+ * exits with status 1 if the loaders disagree.
+ */
+public class CSVTokenizerBenchmark {
+	private static final int WARMUP_ROUNDS = 2;
+
+	private interface Loader {
+		List<String[]> load(Path file) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Path file = Files.createTempFile("hms-benchmark", ".csv");
+		try {
+			generate(file, rows);
+			System.out.printf("%d rows, %.1f MB%n", rows, Files.size(file) / 1e6);
+
+			List<String[]> expected = split(file);
+			boolean isAgreeing = true;
+			isAgreeing &= measure("split(\",\")", CSVTokenizerBenchmark::split, file, rounds, expected);
+			isAgreeing &= measure("tokenizer, reader", CSVTokenizerBenchmark::tokenizeReader, file, rounds, expected);
+			isAgreeing &= measure("tokenizer, mapped", CSVTokenizerBenchmark::tokenizeMapped, file, rounds, expected);
+
+			if (!isAgreeing) System.exit(1);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static void generate(Path file, int rows) throws IOException {
+		String[] months = { "January", "February", "March", "April", "May", "June", "July",
+				"August", "September", "October", "November", "December" };
+		String[] statuses = { "Pending", "Confirmed", "Completed", "Cancelled" };
+		try (BufferedWriter bw = Files.newBufferedWriter(file)) {
+			bw.write("AppointmentId,PatientId,Day,Month,Year,Time Slot,Status,DoctorId,Diagnoses,Treatments,"
+					+ "Type Of Service,Medication,Prescription Status,Prescribed Quantity");
+			bw.newLine();
+			for (int i = 0; i < rows; i++) {
+				bw.write(String.join(",",
+						"'" + (10_000_000_000L + i), String.valueOf(1000 + i % 500),
+						String.valueOf(1 + i % 28), months[i % 12], String.valueOf(2024 + i % 3),
+						(8 + i % 10) + ":00", statuses[i % 4], String.valueOf(1002 + i % 7),
+						"Diabetes;Dementia;", "Pilates;Hydrate Well;", "Injection;", "Insulin;Panadol;",
+						"Dispensed", String.valueOf(1 + i % 5)
+				));
+				bw.newLine();
+			}
+		}
+	}
+
+	private static List<String[]> split(Path file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		try (BufferedReader br = new BufferedReader(new FileReader(file.toFile()))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				rows.add(line.split(","));
+			}
+		}
+		return rows;
+	}
+
+	private static List<String[]> tokenizeReader(Path file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		try (CSVTokenizer tokenizer = new CSVTokenizer(new FileReader(file.toFile()))) {
+			String[] row;
+			while ((row = tokenizer.nextRow()) != null) {
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	private static List<String[]> tokenizeMapped(Path file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				CSVTokenizer tokenizer = new CSVTokenizer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))) {
+			String[] row;
+			while ((row = tokenizer.nextRow()) != null) {
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Runs a loader for the warm-up and measured rounds, and prints its timings.
+	 * @return whether the loader read the expected cells
+	 */
+	private static boolean measure(String name, Loader loader, Path file, int rounds, List<String[]> expected)
+			throws IOException {
+		long[] times = new long[rounds];
+		List<String[]> loaded = null;
+		for (int i = -WARMUP_ROUNDS; i < rounds; i++) {
+			loaded = null;
+			System.gc();
+			long start = System.nanoTime();
+			loaded = loader.load(file);
+			if (i >= 0) times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+
+		boolean isAgreeing = loaded.size() == expected.size();
+		for (int i = 0; i < loaded.size() && isAgreeing; i++) {
+			isAgreeing = Arrays.equals(loaded.get(i), expected.get(i));
+		}
+
+		System.out.printf(
+				"%-18s best %8.1f ms, median %8.1f ms, %6.2f M rows/s%s%n",
+				name, times[0] / 1e6, times[rounds / 2] / 1e6, expected.size() / (times[0] / 1e3),
+				isAgreeing ? "" : "  DISAGREES with split(\",\")"
+		);
+		return isAgreeing;
+	}
+}
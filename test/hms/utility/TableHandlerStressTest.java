@@ -0,0 +1,167 @@
+package hms.utility;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers a single table with concurrent writers and readers, and checks that
+ * no update is lost, no reader ever sees half of a multi-cell update, and the
+ * file ends up holding exactly what the table holds in memory.
+ * <br><br>
+ * Writers increment a counter in random rows with
+ * {@link TableHandler#compareAndUpdate(String, long, Map)}, keeping a second
+ * column at seven times the counter, and overwrite a third column with
+ * {@link TableHandler#updateVariable(String, String, String)}. Readers run
+ * {@link TableHandler.TableQuery TableQuery} scans and id lookups all along.
+ * Both persistence modes are run.
+ * <br><br>
+ * Run with {@code java -cp <out> hms.utility.TableHandlerStressTest [writers] [readers] [updates per writer]};
+ * exits with status 1 if any check fails.
+ */
+public class TableHandlerStressTest {
+	private static final List<String> FORMAT = List.of("ID", "Counter", "Check", "Tag");
+	private static final int ROWS = 64;
+
+	public static void main(String[] args) throws Exception {
+		int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int updatesPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+		List<String> failures = new ArrayList<String>();
+		for (CSVHandler.PersistenceMode mode : CSVHandler.PersistenceMode.values()) {
+			failures.addAll(run(mode, writers, readers, updatesPerWriter));
+		}
+
+		failures.forEach(System.out::println);
+		System.out.println(failures.isEmpty() ? "PASSED" : "FAILED (" + failures.size() + " checks)");
+		if (!failures.isEmpty()) System.exit(1);
+	}
+
+	private static List<String> run(CSVHandler.PersistenceMode mode, int writers, int readers, int updatesPerWriter)
+			throws Exception {
+		Path directory = Files.createTempDirectory("hms-stress");
+		Path file = directory.resolve("stress.csv");
+		StringBuilder content = new StringBuilder(String.join(",", FORMAT)).append('\n');
+		for (int i = 0; i < ROWS; i++) {
+			content.append(i).append(",0,0,none\n");
+		}
+		Files.writeString(file, content);
+
+		TableHandler table = new TableHandler(file.toString(), FORMAT, 0);
+		table.setPersistenceMode(mode);
+		table.setDurability(CSVHandler.Durability.NONE);
+
+		ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+		AtomicBoolean isWriting = new AtomicBoolean(true);
+		AtomicLong retries = new AtomicLong();
+		AtomicLong scans = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int w = 0; w < writers; w++) {
+			String tag = "writer" + w;
+			threads.add(Thread.ofPlatform().start(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try {
+					start.await();
+					for (int u = 0; u < updatesPerWriter; u++) {
+						String id = String.valueOf(random.nextInt(ROWS));
+						while (true) {
+							TableHandler.VersionedRow read = table.readVersionedRow(id);
+							int counter = Integer.parseInt(read.row().get(1)) + 1;
+							if (table.compareAndUpdate(id, read.version(), Map.of(
+									"Counter", String.valueOf(counter), "Check", String.valueOf(7 * counter)
+							))) break;
+							retries.incrementAndGet();
+						}
+						table.updateVariable(id, "Tag", tag);
+					}
+				} catch (Exception e) {
+					failures.add(mode + ": writer failed: " + e);
+				}
+			}));
+		}
+
+		for (int r = 0; r < readers; r++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try {
+					start.await();
+					while (isWriting.get()) {
+						List<List<String>> rows = table.new TableQuery(table.ALL_COLUMNS)
+								.where("Tag").doesNotMatch("")
+								.yield();
+						if (rows.size() != ROWS) failures.add(mode + ": scan saw " + rows.size() + " rows");
+						rows.forEach(row -> checkRow(mode, row, failures));
+
+						String id = String.valueOf(random.nextInt(ROWS));
+						List<List<String>> lookup = table.new TableQuery(table.ALL_COLUMNS)
+								.where("ID").matches(id)
+								.yield();
+						if (lookup.size() != 1) failures.add(mode + ": lookup of " + id + " saw " + lookup.size() + " rows");
+						lookup.forEach(row -> checkRow(mode, row, failures));
+						scans.incrementAndGet();
+					}
+				} catch (Exception e) {
+					failures.add(mode + ": reader failed: " + e);
+				}
+			}));
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (int i = 0; i < writers; i++) {
+			threads.get(i).join();
+		}
+		isWriting.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - startTime;
+
+		long total = 0;
+		// the first row of the data is the header
+		for (List<String> row : table.getData().subList(1, ROWS + 1)) {
+			checkRow(mode, row, failures);
+			total += Long.parseLong(row.get(1));
+		}
+		if (total != (long) writers * updatesPerWriter) {
+			failures.add(mode + ": counters add up to " + total + ", expected " + (long) writers * updatesPerWriter);
+		}
+
+		// the file, read back by a fresh handler, must hold what the table held in memory
+		List<List<String>> inMemory = table.getData();
+		table.close();
+		TableHandler reopened = new TableHandler(file.toString(), FORMAT, 0);
+		if (!reopened.getData().equals(inMemory)) failures.add(mode + ": file differs from the table in memory");
+		reopened.close();
+
+		System.out.printf(
+				"%s: %d updates, %d retries, %d scans in %.0f ms%n",
+				mode, (long) writers * updatesPerWriter, retries.get(), scans.get(), elapsed / 1e6
+		);
+
+		try (var paths = Files.walk(directory)) {
+			paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+		}
+		return new ArrayList<String>(failures);
+	}
+
+	private static void checkRow(CSVHandler.PersistenceMode mode, List<String> row, ConcurrentLinkedQueue<String> failures) {
+		if (row.size() != FORMAT.size()) {
+			failures.add(mode + ": torn row " + row);
+			return;
+		}
+		if (Long.parseLong(row.get(2)) != 7 * Long.parseLong(row.get(1))) {
+			failures.add(mode + ": half-applied update " + row);
+		}
+	}
+}